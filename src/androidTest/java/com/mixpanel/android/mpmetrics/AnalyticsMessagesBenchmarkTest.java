@@ -0,0 +1,135 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Not a correctness test - measures how quickly many threads can hand events to the
+ * AnalyticsMessages worker, with and without the event ring buffer. Results are logged
+ * under the "MixpanelAPI.Benchmark" tag.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AnalyticsMessagesBenchmarkTest {
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+    private static final int[] PRODUCER_THREADS = { 1, 2, 4, 8, 16 };
+    private static final int EVENTS_PER_THREAD = 1000;
+    private static final long MAX_WAIT_SECONDS = 120;
+
+    @Test
+    public void testEnqueueThroughput() throws InterruptedException {
+        for (int threads : PRODUCER_THREADS) {
+            final Result before = runProducers(0, threads);
+            final Result after = runProducers(1024, threads);
+            Log.i(LOGTAG, "enqueue threads=" + threads +
+                    " before: " + before.eventsPerSecond + " events/sec, p99 " + before.p99Nanos + "ns" +
+                    " | after: " + after.eventsPerSecond + " events/sec, p99 " + after.p99Nanos + "ns");
+        }
+    }
+
+    private Result runProducers(final int queueCapacity, final int threadCount) throws InterruptedException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final int totalEvents = threadCount * EVENTS_PER_THREAD;
+        final CountDownLatch stored = new CountDownLatch(totalEvents);
+        final MPDbAdapter countingAdapter = new MPDbAdapter(context) {
+            @Override
+            public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+                stored.countDown();
+                return 1;
+            }
+        };
+        final MPConfig config = new MPConfig(new Bundle(), context) {
+            @Override
+            public int getEventQueueCapacity() {
+                return queueCapacity;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+        final AnalyticsMessages messages = new AnalyticsMessages(context) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return countingAdapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        final long[][] latencies = new long[threadCount][EVENTS_PER_THREAD];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] producers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long[] threadLatencies = latencies[i];
+            final String token = "Benchmark Token " + i;
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int e = 0; e < EVENTS_PER_THREAD; e++) {
+                        final AnalyticsMessages.EventDescription event =
+                                new AnalyticsMessages.EventDescription("Benchmark Event", new JSONObject(), token);
+                        final long callStart = System.nanoTime();
+                        messages.eventsMessage(event);
+                        threadLatencies[e] = System.nanoTime() - callStart;
+                    }
+                }
+            };
+            producers[i].start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(stored.await(MAX_WAIT_SECONDS, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - begin;
+        messages.hardKill();
+
+        final long[] allLatencies = new long[totalEvents];
+        for (int i = 0; i < threadCount; i++) {
+            System.arraycopy(latencies[i], 0, allLatencies, i * EVENTS_PER_THREAD, EVENTS_PER_THREAD);
+        }
+        Arrays.sort(allLatencies);
+
+        final Result ret = new Result();
+        ret.eventsPerSecond = totalEvents * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        ret.p99Nanos = allLatencies[(int) (totalEvents * 0.99)];
+        return ret;
+    }
+
+    private static class Result {
+        long eventsPerSecond;
+        long p99Nanos;
+    }
+}
@@ -0,0 +1,168 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DeadLetterTest {
+    private static final String TOKEN = "Dead Letter Token";
+    private static final int QUEUED_EVENTS = 120;
+    private static final int POISON_EVENT = 73;
+    private static final long MAX_WAIT_SECONDS = 10;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mAdapter = new MPDbAdapter(mContext, "mixpanel_dead_letter_test");
+        mAdapter.deleteDB();
+    }
+
+    @After
+    public void tearDown() {
+        mAdapter.deleteDB();
+    }
+
+    @Test
+    public void testRejectedRowIsSetAside() throws JSONException, InterruptedException {
+        for (int i = 0; i < QUEUED_EVENTS; i++) {
+            mAdapter.addJSON(makeEvent(i == POISON_EVENT ? "Poison Event" : "Event " + i), TOKEN, MPDbAdapter.Table.EVENTS, false);
+        }
+
+        final CountDownLatch accepted = new CountDownLatch(QUEUED_EVENTS - 1);
+        final AtomicInteger rejectedRequests = new AtomicInteger();
+        final RemoteService poster = new HttpService() {
+            @Override
+            public boolean isOnline(Context context, OfflineMode offlineMode) {
+                return true;
+            }
+
+            @Override
+            public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory)
+                    throws ServiceUnavailableException, IOException {
+                try {
+                    final JSONArray batch = new JSONArray(Base64Coder.decodeString(params.get("data").toString()));
+                    for (int i = 0; i < batch.length(); i++) {
+                        if ("Poison Event".equals(batch.getJSONObject(i).getString("event"))) {
+                            rejectedRequests.incrementAndGet();
+                            throw new ClientErrorException(400, new IOException("Bad Request"));
+                        }
+                    }
+                    for (int i = 0; i < batch.length(); i++) {
+                        accepted.countDown();
+                    }
+                    return TestUtils.bytes("1\n");
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                }
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle(), mContext) {
+            @Override
+            public boolean getDisableDecideChecker() {
+                return true;
+            }
+
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+        final AnalyticsMessages messages = new AnalyticsMessages(mContext) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mAdapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return poster;
+            }
+        };
+
+        try {
+            messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN));
+            assertTrue(accepted.await(MAX_WAIT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            messages.hardKill();
+        }
+
+        assertEquals(1, mAdapter.getDeadLetterCount(TOKEN));
+        // Halving a batch of 50 down to one row takes one rejection per level
+        assertTrue(rejectedRequests.get() <= 7);
+    }
+
+    @Test
+    public void testMoveToDeadLetters() throws JSONException {
+        for (int i = 0; i < 3; i++) {
+            mAdapter.addJSON(makeEvent("Event " + i), TOKEN, MPDbAdapter.Table.EVENTS, false);
+        }
+        final String firstId = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false, "0", 1, Integer.MAX_VALUE)[0];
+
+        assertEquals(1, mAdapter.moveToDeadLetters(MPDbAdapter.Table.EVENTS, TOKEN, false, "0", firstId, 413));
+        assertEquals(1, mAdapter.getDeadLetterCount(TOKEN));
+        assertEquals("2", mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false)[2]);
+
+        mAdapter.cleanupDeadLetters(System.currentTimeMillis() + 1);
+        assertEquals(0, mAdapter.getDeadLetterCount(TOKEN));
+    }
+
+    @Test
+    public void testCleanupDeadLettersForToken() throws JSONException {
+        mAdapter.addJSON(makeEvent("Kept"), "Other Token", MPDbAdapter.Table.EVENTS, false);
+        mAdapter.addJSON(makeEvent("Removed"), TOKEN, MPDbAdapter.Table.EVENTS, false);
+        final String lastId = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false)[0];
+        final String otherLastId = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, "Other Token", false)[0];
+        assertEquals(1, mAdapter.moveToDeadLetters(MPDbAdapter.Table.EVENTS, TOKEN, false, "0", lastId, 400));
+        assertEquals(1, mAdapter.moveToDeadLetters(MPDbAdapter.Table.EVENTS, "Other Token", false, "0", otherLastId, 400));
+
+        // As on optOutTracking() or reset()
+        mAdapter.cleanupDeadLetters(TOKEN);
+        assertEquals(0, mAdapter.getDeadLetterCount(TOKEN));
+        assertEquals(1, mAdapter.getDeadLetterCount("Other Token"));
+    }
+
+    private static JSONObject makeEvent(String name) throws JSONException {
+        final JSONObject event = new JSONObject();
+        event.put("event", name);
+        event.put("properties", new JSONObject().put("token", TOKEN).put("distinct_id", "dead letters"));
+        return event;
+    }
+
+    private Context mContext;
+    private MPDbAdapter mAdapter;
+}
@@ -0,0 +1,64 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Not a correctness test - measures the CPU time spent on the default properties of each event,
+ * looking every property up as before, and copying them from the cached snapshot. Results are
+ * logged under the "MixpanelAPI.Benchmark" tag.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class DeviceContextBenchmarkTest {
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+    private static final int WARMUP_EVENTS = 200;
+    private static final int EVENTS = 2000;
+
+    @Test
+    public void testDefaultPropertiesCost() throws JSONException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final DeviceContext deviceContext = DeviceContext.getInstance(context);
+
+        // Same properties either way
+        final JSONObject lookedUp = deviceContext.buildSnapshot().toJSON();
+        final JSONObject cached = deviceContext.getSnapshot().toJSON();
+        assertEquals(lookedUp.length(), cached.length());
+        for (final Iterator<String> keys = lookedUp.keys(); keys.hasNext();) {
+            final String key = keys.next();
+            assertEquals(lookedUp.get(key), cached.get(key));
+        }
+
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            deviceContext.buildSnapshot().putInto(new JSONObject());
+            deviceContext.getSnapshot().putInto(new JSONObject());
+        }
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            deviceContext.buildSnapshot().putInto(new JSONObject());
+        }
+        final long beforeNanos = (System.nanoTime() - begin) / EVENTS;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            deviceContext.getSnapshot().putInto(new JSONObject());
+        }
+        final long afterNanos = (System.nanoTime() - begin) / EVENTS;
+
+        Log.i(LOGTAG, "default properties per event before: " + beforeNanos + "ns | after: " + afterNanos + "ns");
+    }
+}
@@ -0,0 +1,73 @@
+package com.mixpanel.android.mpmetrics;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EndpointRetryStateTest {
+
+    @Test
+    public void testCircuitOpensAndProbes() {
+        final EndpointRetryState state = new EndpointRetryState(new Random(1));
+        assertTrue(state.allowRequest(0));
+        assertEquals(EndpointRetryState.State.CLOSED, state.getState());
+
+        final long delay = state.onFailure(1000, 0);
+        assertEquals(EndpointRetryState.State.OPEN, state.getState());
+        assertTrue(state.isBackingOff(1000 + delay - 1));
+        assertFalse(state.allowRequest(1000 + delay - 1));
+
+        assertTrue(state.allowRequest(1000 + delay));
+        assertEquals(EndpointRetryState.State.HALF_OPEN, state.getState());
+        assertFalse(state.isBackingOff(1000 + delay));
+
+        state.onFailure(1000 + delay, 0);
+        assertEquals(2, state.getConsecutiveFailures());
+        assertEquals(EndpointRetryState.State.OPEN, state.getState());
+
+        assertTrue(state.allowRequest(Long.MAX_VALUE / 2));
+        assertEquals(2, state.onSuccess());
+        assertEquals(EndpointRetryState.State.CLOSED, state.getState());
+        assertEquals(0, state.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testJitteredDelays() {
+        final Random random = new Random(2);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            final EndpointRetryState state = new EndpointRetryState(random);
+            final long first = state.onFailure(0, 0);
+            assertTrue(first >= 60 * 1000 && first <= 120 * 1000);
+            min = Math.min(min, first);
+            max = Math.max(max, first);
+
+            long delay = first;
+            for (int failure = 1; failure < 20; failure++) {
+                delay = state.onFailure(0, 0);
+            }
+            assertTrue(delay >= 60 * 1000 && delay <= 10 * 60 * 1000);
+        }
+
+        // Retries spread out across the window rather than all landing together
+        assertTrue(max - min > 50 * 1000);
+    }
+
+    @Test
+    public void testHonorsRetryAfter() {
+        final EndpointRetryState state = new EndpointRetryState(new Random(3));
+        assertEquals(30 * 60 * 1000, state.onFailure(0, 30 * 60 * 1000));
+        assertTrue(state.onFailure(0, 1000) >= 60 * 1000);
+    }
+}
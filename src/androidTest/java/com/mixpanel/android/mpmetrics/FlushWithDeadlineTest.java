@@ -0,0 +1,261 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.mixpanel.android.util.RemoteService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class FlushWithDeadlineTest {
+    private static final String TOKEN = "Flush Deadline Token";
+    private static final String PEOPLE_TOKEN = "Flush Deadline People Token";
+    private static final String GROUPS_TOKEN = "Flush Deadline Groups Token";
+    private static final int QUEUED_EVENTS = 120;
+
+    @Before
+    public void setUp() throws JSONException {
+        mContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mAdapter = new MPDbAdapter(mContext, "mixpanel_flush_deadline_test");
+        mAdapter.deleteDB();
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "Deadline Event");
+        event.put("properties", new JSONObject().put("token", TOKEN).put("distinct_id", "deadline"));
+        for (int i = 0; i < QUEUED_EVENTS; i++) {
+            mAdapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, false);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mAdapter.deleteDB();
+    }
+
+    @Test
+    public void testFlushReportsRowsSent() throws Exception {
+        final StandInServer server = new StandInServer(0, false);
+        server.start();
+        final AnalyticsMessages messages = makeMessages(server);
+        try {
+            final FlushFuture flush = new FlushFuture(TOKEN, 10000);
+            messages.postToServer(flush);
+            final FlushResult result = flush.get();
+
+            final FlushResult.TableResult events = result.getTableResult(MPDbAdapter.Table.EVENTS);
+            assertEquals(FlushResult.Status.SUCCESS, events.getStatus());
+            assertEquals(QUEUED_EVENTS, events.getRowsSent());
+            assertTrue(events.getBytesSent() > 0);
+            assertEquals(0, result.getTableResult(MPDbAdapter.Table.PEOPLE).getRowsSent());
+            assertTrue(result.isSuccessful());
+        } finally {
+            messages.hardKill();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFlushStopsAtDeadline() throws Exception {
+        final StandInServer server = new StandInServer(5000, false);
+        server.start();
+        final AnalyticsMessages messages = makeMessages(server);
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            final FlushFuture flush = new FlushFuture(TOKEN, 500);
+            messages.postToServer(flush);
+            final FlushResult result = flush.get();
+
+            assertTrue(SystemClock.elapsedRealtime() - start < 3000);
+            assertEquals(FlushResult.Status.TIMED_OUT, result.getTableResult(MPDbAdapter.Table.EVENTS).getStatus());
+            assertEquals(0, result.getTableResult(MPDbAdapter.Table.EVENTS).getRowsSent());
+        } finally {
+            messages.hardKill();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFlushTimesOutBehindBusyWorker() throws Exception {
+        final StandInServer server = new StandInServer(0, false);
+        server.start();
+        final CountDownLatch workerBusy = new CountDownLatch(1);
+        final CountDownLatch releaseWorker = new CountDownLatch(1);
+        final AnalyticsMessages messages = new AnalyticsMessages(mContext) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mAdapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return makeConfig(server);
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                // Holds the worker up in the first flush, until the second one is past its deadline
+                if (workerBusy.getCount() > 0 && Thread.currentThread().getName().startsWith("com.mixpanel.android.AnalyticsWorker")) {
+                    workerBusy.countDown();
+                    try {
+                        releaseWorker.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getPoster();
+            }
+        };
+        try {
+            messages.postToServer(new FlushFuture(TOKEN, 10000));
+            assertTrue(workerBusy.await(5, TimeUnit.SECONDS));
+
+            final FlushFuture flush = new FlushFuture(TOKEN, 200);
+            messages.postToServer(flush);
+            final FlushResult result = flush.get();
+
+            assertFalse(result.isSuccessful());
+            for (MPDbAdapter.Table table : new MPDbAdapter.Table[] { MPDbAdapter.Table.EVENTS, MPDbAdapter.Table.PEOPLE, MPDbAdapter.Table.GROUPS }) {
+                assertEquals(FlushResult.Status.TIMED_OUT, result.getTableResult(table).getStatus());
+                assertEquals(0, result.getTableResult(table).getRowsSent());
+            }
+        } finally {
+            releaseWorker.countDown();
+            messages.hardKill();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testGetQueuedTokens() throws JSONException {
+        mAdapter.addJSON(makePeopleUpdate(PEOPLE_TOKEN), PEOPLE_TOKEN, MPDbAdapter.Table.PEOPLE, false);
+        mAdapter.addJSON(makePeopleUpdate(GROUPS_TOKEN), GROUPS_TOKEN, MPDbAdapter.Table.GROUPS, false);
+        // Anonymous updates are only sent once they're moved to the people table
+        mAdapter.addJSON(makePeopleUpdate("Anonymous Token"), "Anonymous Token", MPDbAdapter.Table.ANONYMOUS_PEOPLE, false);
+
+        assertEquals(new HashSet<String>(Arrays.asList(TOKEN, PEOPLE_TOKEN, GROUPS_TOKEN)),
+                new HashSet<String>(mAdapter.getQueuedTokens()));
+
+        mAdapter.deleteDB();
+        assertTrue(mAdapter.getQueuedTokens().isEmpty());
+    }
+
+    @Test
+    public void testFlushEveryProject() throws Exception {
+        mAdapter.addJSON(makePeopleUpdate(PEOPLE_TOKEN), PEOPLE_TOKEN, MPDbAdapter.Table.PEOPLE, false);
+        mAdapter.addJSON(makePeopleUpdate(GROUPS_TOKEN), GROUPS_TOKEN, MPDbAdapter.Table.GROUPS, false);
+
+        final StandInServer server = new StandInServer(0, false);
+        server.start();
+        final AnalyticsMessages messages = makeMessages(server);
+        try {
+            // As the background flush job does
+            final FlushFuture flush = new FlushFuture(null, 10000);
+            messages.postToServer(flush);
+            final FlushResult result = flush.get();
+
+            assertTrue(result.isSuccessful());
+            assertEquals(QUEUED_EVENTS, result.getTableResult(MPDbAdapter.Table.EVENTS).getRowsSent());
+            assertEquals(1, result.getTableResult(MPDbAdapter.Table.PEOPLE).getRowsSent());
+            assertEquals(1, result.getTableResult(MPDbAdapter.Table.GROUPS).getRowsSent());
+            assertTrue(mAdapter.getQueuedTokens().isEmpty());
+        } finally {
+            messages.hardKill();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFlushWithNothingQueued() throws Exception {
+        mAdapter.deleteDB();
+        final StandInServer server = new StandInServer(0, false);
+        server.start();
+        final AnalyticsMessages messages = makeMessages(server);
+        try {
+            final FlushFuture flush = new FlushFuture(null, 10000);
+            messages.postToServer(flush);
+            final FlushResult result = flush.get();
+
+            // So the background flush job isn't rescheduled
+            assertTrue(result.isSuccessful());
+            assertEquals(0, server.getRequestCount());
+        } finally {
+            messages.hardKill();
+            server.close();
+        }
+    }
+
+    private static JSONObject makePeopleUpdate(String token) throws JSONException {
+        return new JSONObject()
+                .put("$token", token)
+                .put("$distinct_id", "deadline")
+                .put("$set", new JSONObject().put("flushed", true));
+    }
+
+    private AnalyticsMessages makeMessages(final StandInServer server) {
+        final MPConfig config = makeConfig(server);
+        return new AnalyticsMessages(mContext) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mAdapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+    }
+
+    private MPConfig makeConfig(final StandInServer server) {
+        return new MPConfig(new Bundle(), mContext) {
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public String getPeopleEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public String getGroupsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public boolean getDisableDecideChecker() {
+                return true;
+            }
+
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+    }
+
+    private Context mContext;
+    private MPDbAdapter mAdapter;
+}
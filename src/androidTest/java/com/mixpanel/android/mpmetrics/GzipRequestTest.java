@@ -0,0 +1,120 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.BufferedRequestBody;
+import com.mixpanel.android.util.HttpService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class GzipRequestTest {
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(0, true);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void testGzipJsonBody() throws Exception {
+        final String json = makeBatch(50).toString();
+        final BufferedRequestBody body = BufferedRequestBody.gzipJson(json);
+
+        final byte[] response = new HttpService().postRequest(mServer.getUrl(), body, null);
+        assertTrue(mServer.awaitRequests(1, 5000));
+
+        assertEquals("1", new String(response, "UTF-8"));
+        assertEquals("POST", mServer.getLastMethod());
+        assertEquals("application/json", mServer.getLastHeaders().get("content-type"));
+        assertEquals("gzip", mServer.getLastHeaders().get("content-encoding"));
+        assertEquals(String.valueOf(body.getContentLength()), mServer.getLastHeaders().get("content-length"));
+        assertEquals(json, new String(gunzip(mServer.getLastBody()), "UTF-8"));
+
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("data", Base64Coder.encodeString(json));
+        final long formLength = BufferedRequestBody.form(params).getContentLength();
+        Log.i(LOGTAG, "50 event batch - base64 form body: " + formLength + " bytes, gzip json body: " +
+                body.getContentLength() + " bytes, saved " + (100 - body.getContentLength() * 100 / formLength) + "%");
+        assertTrue(body.getContentLength() < formLength);
+    }
+
+    @Test
+    public void testFormBodyUnchanged() throws Exception {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("data", Base64Coder.encodeString("[]"));
+
+        new HttpService().performRequest(mServer.getUrl(), params, null);
+        assertTrue(mServer.awaitRequests(1, 5000));
+
+        assertEquals("POST", mServer.getLastMethod());
+        assertEquals("application/x-www-form-urlencoded", mServer.getLastHeaders().get("content-type"));
+        assertEquals(null, mServer.getLastHeaders().get("content-encoding"));
+        assertEquals("data=" + Base64Coder.encodeString("[]").replace("=", "%3D"), new String(mServer.getLastBody(), "UTF-8"));
+    }
+
+    private static JSONArray makeBatch(int size) throws JSONException {
+        final JSONArray batch = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            final JSONObject properties = new JSONObject();
+            properties.put("token", "Test Token");
+            properties.put("distinct_id", "3d9e4ef3-8a5c-4a4c-9a1f-d5b1c6a1a5e2");
+            properties.put("time", 1600000000L + i);
+            properties.put("mp_lib", "android");
+            properties.put("$lib_version", "5.9.2");
+            properties.put("$os", "Android");
+            properties.put("$os_version", "11");
+            properties.put("$manufacturer", "Google");
+            properties.put("$model", "Pixel 4");
+            properties.put("$screen_height", 2280);
+            properties.put("$screen_width", 1080);
+            properties.put("$wifi", true);
+            properties.put("item", "Item " + i);
+            batch.put(new JSONObject().put("event", "Viewed Item").put("properties", properties));
+        }
+        return batch;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private StandInServer mServer;
+
+    private static final String LOGTAG = "MixpanelAPI.GzipRequestTest";
+}
@@ -0,0 +1,109 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Not a correctness test - measures the cost of MPDbAdapter inserts and batch reads. Results are
+ * logged under the "MixpanelAPI.Benchmark" tag.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class MPDbAdapterBenchmarkTest {
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+    private static final String TOKEN = "Benchmark Token";
+    private static final int WARMUP_INSERTS = 50;
+    private static final int MEASURED_INSERTS = 500;
+    private static final int QUEUED_ROWS = 100000;
+
+    @Test
+    public void testInsertCost() throws JSONException {
+        final long before = measureInserts(false);
+        final long after = measureInserts(true);
+        Log.i(LOGTAG, "addJSON per insert - reopened: " + before + "us, kept open: " + after + "us");
+    }
+
+    @Test
+    public void testBatchReadsFromLargeQueue() throws JSONException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final MPDbAdapter adapter = new MPDbAdapter(context, "mixpanel_benchmark_batches", true);
+        adapter.deleteDB();
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "Benchmark Event");
+        event.put("properties", new JSONObject().put("token", TOKEN).put("distinct_id", "benchmark"));
+
+        try {
+            // Interleave two projects and automatic rows, so every batch read has to filter
+            adapter.beginGroupCommit();
+            for (int i = 0; i < QUEUED_ROWS; i++) {
+                final String token = i % 2 == 0 ? TOKEN : "Other " + TOKEN;
+                adapter.addJSON(event, token, MPDbAdapter.Table.EVENTS, i % 3 == 0);
+            }
+            adapter.endGroupCommit();
+
+            Log.i(LOGTAG, "generateDataString over " + QUEUED_ROWS + " rows - manual only: " + measureBatchReads(adapter, false) +
+                    "us per batch, with automatic: " + measureBatchReads(adapter, true) + "us per batch");
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+
+    private long measureBatchReads(MPDbAdapter adapter, boolean includeAutomaticEvents) {
+        int batches = 0;
+        String lastId = "0";
+        final long start = System.nanoTime();
+        String[] data = adapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, includeAutomaticEvents, lastId);
+        while (data != null) {
+            batches++;
+            lastId = data[0];
+            data = adapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, includeAutomaticEvents, lastId);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        assertTrue(batches > 0);
+        return TimeUnit.NANOSECONDS.toMicros(elapsed) / batches;
+    }
+
+    private long measureInserts(boolean keepOpen) throws JSONException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final MPDbAdapter adapter = new MPDbAdapter(context, "mixpanel_benchmark_" + keepOpen, keepOpen);
+        adapter.deleteDB();
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "Benchmark Event");
+        event.put("properties", new JSONObject().put("token", TOKEN).put("distinct_id", "benchmark"));
+
+        try {
+            for (int i = 0; i < WARMUP_INSERTS; i++) {
+                adapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, false);
+            }
+
+            int count = 0;
+            final long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_INSERTS; i++) {
+                count = adapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, false);
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            assertEquals(WARMUP_INSERTS + MEASURED_INSERTS, count);
+            return TimeUnit.NANOSECONDS.toMicros(elapsed) / MEASURED_INSERTS;
+        } finally {
+            adapter.deleteDB();
+        }
+    }
+}
@@ -1524,7 +1524,9 @@ public class MixpanelBasicTest {
         assertNull(peopleMessages.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
 
         for (int i = 0; i < 4; i++) {
-            JSONObject sessionMetadata = storedJsons.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS).getJSONObject("$mp_metadata");
+            JSONObject storedEvent = storedJsons.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+            assertTrue(storedEvent.getJSONObject("properties").has("$insert_id"));
+            JSONObject sessionMetadata = storedEvent.getJSONObject("$mp_metadata");
             assertTrue(sessionMetadata.has("$mp_event_id"));
             assertTrue(sessionMetadata.has("$mp_session_id"));
             assertTrue(sessionMetadata.has("$mp_session_start_sec"));
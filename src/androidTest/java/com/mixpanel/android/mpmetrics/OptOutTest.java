@@ -2,6 +2,7 @@ package com.mixpanel.android.mpmetrics;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Bundle;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
@@ -353,6 +354,83 @@ public class OptOutTest {
         assertEquals(0, mPersistentIdentity.getTimeEvents().size());
     }
 
+    /**
+     * Events still in the event buffer when the queues are emptied must not be written after it
+     */
+    @Test
+    public void testBufferedEventsDontOutliveEmptyQueues() throws InterruptedException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final CountDownLatch firstEventWriting = new CountDownLatch(1);
+        final CountDownLatch releaseFirstEvent = new CountDownLatch(1);
+        final BlockingQueue<String> emptiedTokens = new LinkedBlockingQueue<>();
+        final MPDbAdapter adapter = new MPDbAdapter(context, "mixpanel_buffered_opt_out_test") {
+            @Override
+            public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+                if (firstEventWriting.getCount() > 0) {
+                    firstEventWriting.countDown();
+                    try {
+                        releaseFirstEvent.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.addJSON(j, token, table, isAutomaticRecord);
+            }
+
+            @Override
+            public void cleanupDeadLetters(String token) {
+                super.cleanupDeadLetters(token);
+                emptiedTokens.add(token);
+            }
+        };
+        adapter.deleteDB();
+        final MPConfig config = new MPConfig(new Bundle(), context) {
+            @Override
+            public int getGroupCommitMaxEvents() {
+                // Each drain leaves the rest of the buffer for another one
+                return 1;
+            }
+
+            @Override
+            public boolean getDisableDecideChecker() {
+                return true;
+            }
+
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+        final AnalyticsMessages messages = new AnalyticsMessages(context) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return adapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+        try {
+            for (int i = 0; i < 10; i++) {
+                messages.eventsMessage(new AnalyticsMessages.EventDescription("Buffered Event " + i, new JSONObject(), TOKEN));
+            }
+            assertTrue(firstEventWriting.await(MAX_TIMEOUT_POLL, TimeUnit.MILLISECONDS));
+            messages.emptyTrackingQueues(new AnalyticsMessages.MixpanelDescription(TOKEN));
+            releaseFirstEvent.countDown();
+            assertEquals(TOKEN, emptiedTokens.poll(MAX_TIMEOUT_POLL, TimeUnit.MILLISECONDS));
+
+            // Anything posted before the second empty has been handled by the time it is
+            messages.emptyTrackingQueues(new AnalyticsMessages.MixpanelDescription("Other Token"));
+            assertEquals("Other Token", emptiedTokens.poll(MAX_TIMEOUT_POLL, TimeUnit.MILLISECONDS));
+            assertNull(adapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false));
+        } finally {
+            releaseFirstEvent.countDown();
+            messages.hardKill();
+        }
+    }
+
     private void forceFlush() {
         mAnalyticsMessages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, false));
     }
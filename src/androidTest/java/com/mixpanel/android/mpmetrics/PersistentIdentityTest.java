@@ -7,6 +7,8 @@ import android.content.SharedPreferences;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -167,9 +169,53 @@ public class PersistentIdentityTest {
         assertTrue("hadPersistedDistinctId cannot be false", mPersistentIdentity.getHadPersistedDistinctId());
     }
 
+    @Test
+    public void testWriteBehind() throws JSONException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final SharedPreferences writeBehindPreferences = context.getSharedPreferences(TEST_WRITE_BEHIND_PREFERENCES, Context.MODE_PRIVATE);
+        writeBehindPreferences.edit().clear().commit();
+        final SharedPreferences writeBehindTimeEvents = context.getSharedPreferences(TEST_WRITE_BEHIND_TIME_EVENTS_PREFERENCES, Context.MODE_PRIVATE);
+        writeBehindTimeEvents.edit().clear().commit();
+
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final PersistentIdentity identity = new PersistentIdentity(
+                loader.loadPreferences(context, TEST_REFERRER_PREFERENCES, null),
+                loader.loadPreferences(context, TEST_WRITE_BEHIND_PREFERENCES, null),
+                loader.loadPreferences(context, TEST_WRITE_BEHIND_TIME_EVENTS_PREFERENCES, null),
+                loader.loadPreferences(context, TEST_MIXPANEL_PREFERENCES, null),
+                60 * 60 * 1000);
+
+        identity.registerSuperProperties(new JSONObject().put("first", 1));
+        identity.registerSuperProperties(new JSONObject().put("second", 2));
+        identity.setEventsDistinctId("WRITE BEHIND ID");
+        identity.addTimeEvent("Timed Event", 1000L);
+
+        // Seen by reads straight away, written later
+        final JSONObject superProperties = new JSONObject();
+        identity.addSuperPropertiesToObject(superProperties);
+        assertEquals(2, superProperties.length());
+        assertEquals("WRITE BEHIND ID", identity.getEventsDistinctId());
+        assertEquals(Long.valueOf(1000L), identity.getTimeEvents().get("Timed Event"));
+        assertFalse(writeBehindPreferences.contains("super_properties"));
+        assertFalse(writeBehindTimeEvents.contains("Timed Event"));
+
+        identity.getTimedEventRegistry().persist();
+        WriteBehindPreferences.commitAll();
+        assertEquals(superProperties.toString(), writeBehindPreferences.getString("super_properties", null));
+        assertEquals("WRITE BEHIND ID", writeBehindPreferences.getString("events_distinct_id", null));
+        assertEquals(1000L, writeBehindTimeEvents.getLong("Timed Event", 0));
+
+        identity.clearTimeEvents();
+        assertTrue(identity.getTimeEvents().isEmpty());
+        WriteBehindPreferences.commitAll();
+        assertTrue(writeBehindTimeEvents.getAll().isEmpty());
+    }
+
     private PersistentIdentity mPersistentIdentity;
     private static final String TEST_PREFERENCES = "TEST PERSISTENT PROPERTIES PREFS";
     private static final String TEST_REFERRER_PREFERENCES  = "TEST REFERRER PREFS";
     private static final String TEST_TIME_EVENTS_PREFERENCES  = "TEST TIME EVENTS PREFS";
     private static final String TEST_MIXPANEL_PREFERENCES  = "TEST MIXPANELPREFS";
+    private static final String TEST_WRITE_BEHIND_PREFERENCES = "TEST WRITE BEHIND PREFS";
+    private static final String TEST_WRITE_BEHIND_TIME_EVENTS_PREFERENCES = "TEST WRITE BEHIND TIME EVENTS PREFS";
 }
@@ -0,0 +1,114 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Not a correctness test - measures how long a flush takes to drain an offline backlog to a
+ * stand-in server with injected latency, for several in-flight windows. Results are logged
+ * under the "MixpanelAPI.Benchmark" tag.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PipelinedFlushBenchmarkTest {
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+    private static final String TOKEN = "Benchmark Token";
+    private static final int[] WINDOWS = { 1, 2, 4 };
+    private static final int QUEUED_EVENTS = 2000;
+    private static final int BATCH_ROWS = 50;
+    private static final long SERVER_LATENCY_MILLIS = 200;
+    private static final long MAX_WAIT_MILLIS = 120000;
+
+    @Test
+    public void testDrainBacklog() throws Exception {
+        for (int window : WINDOWS) {
+            final long elapsed = drainBacklog(window);
+            Log.i(LOGTAG, "flush of " + QUEUED_EVENTS + " events with " + SERVER_LATENCY_MILLIS + "ms server latency, window=" +
+                    window + ": " + elapsed + "ms");
+        }
+    }
+
+    private long drainBacklog(final int window) throws JSONException, IOException, InterruptedException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final MPDbAdapter adapter = new MPDbAdapter(context, "mixpanel_benchmark_flush");
+        adapter.deleteDB();
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "Benchmark Event");
+        event.put("properties", new JSONObject().put("token", TOKEN).put("distinct_id", "benchmark"));
+        adapter.beginGroupCommit();
+        for (int i = 0; i < QUEUED_EVENTS; i++) {
+            adapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, false);
+        }
+        adapter.endGroupCommit();
+
+        final StandInServer server = new StandInServer(SERVER_LATENCY_MILLIS, false);
+        server.start();
+        final MPConfig config = new MPConfig(new Bundle(), context) {
+            @Override
+            public String getEventsEndpoint() {
+                return server.getUrl();
+            }
+
+            @Override
+            public boolean getDisableDecideChecker() {
+                return true;
+            }
+
+            @Override
+            public int getFlushWindow() {
+                return window;
+            }
+
+            @Override
+            public int getMaxConnections() {
+                return window;
+            }
+
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+        };
+        final AnalyticsMessages messages = new AnalyticsMessages(context) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return adapter;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        try {
+            final long start = System.nanoTime();
+            messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN));
+            assertTrue(server.awaitRequests(QUEUED_EVENTS / BATCH_ROWS, MAX_WAIT_MILLIS));
+            final long elapsed = (System.nanoTime() - start) / 1000000;
+
+            assertEquals(QUEUED_EVENTS / BATCH_ROWS, server.getRequestCount());
+            return elapsed;
+        } finally {
+            messages.hardKill();
+            server.close();
+            adapter.deleteDB();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.mixpanel.android.mpmetrics;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.mixpanel.android.util.PooledHttpService;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PooledHttpServiceTest {
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != mServer) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void testReusesConnections() throws Exception {
+        mServer = new StandInServer(0, false);
+        mServer.start();
+
+        final PooledHttpService service = new PooledHttpService(4, 30000);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("1", new String(service.performRequest(mServer.getUrl(), makeParams(i), null), "UTF-8"));
+        }
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void testEvictsClosedConnections() throws Exception {
+        // The server closes every connection after answering, without saying so
+        mServer = new StandInServer(0, true);
+        mServer.start();
+
+        final PooledHttpService service = new PooledHttpService(4, 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("1", new String(service.performRequest(mServer.getUrl(), makeParams(i), null), "UTF-8"));
+        }
+        assertEquals(5, mServer.getConnectionCount());
+    }
+
+    private static Map<String, Object> makeParams(int i) {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("data", "request " + i);
+        return params;
+    }
+
+    private StandInServer mServer;
+}
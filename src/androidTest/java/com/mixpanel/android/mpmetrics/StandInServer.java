@@ -0,0 +1,177 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for the Mixpanel API on localhost. Answers "1" to any number of HTTP/1.1 requests
+ * on each connection it accepts, after an optional injected delay, and records the last one.
+ */
+/* package */ class StandInServer extends Thread {
+    public StandInServer(long latencyMillis, boolean closeAfterResponse) throws IOException {
+        mSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        mLatencyMillis = latencyMillis;
+        mCloseAfterResponse = closeAfterResponse;
+        setDaemon(true);
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + "/track";
+    }
+
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return the method of the last request answered, or null if there wasn't one
+     */
+    public String getLastMethod() {
+        return mLastMethod;
+    }
+
+    /**
+     * @return the headers of the last request answered, by lower case name
+     */
+    public Map<String, String> getLastHeaders() {
+        return mLastHeaders;
+    }
+
+    /**
+     * @return the body of the last request answered, or null if there wasn't one
+     */
+    public byte[] getLastBody() {
+        return mLastBody;
+    }
+
+    /**
+     * @return true if at least count requests were answered within timeoutMillis
+     */
+    public boolean awaitRequests(int count, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (mRequests) {
+            while (mRequests.get() < count) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mRequests.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!mSocket.isClosed()) {
+            try {
+                final Socket client = mSocket.accept();
+                mConnections.incrementAndGet();
+                final Thread handler = new Thread() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            final InputStream in = client.getInputStream();
+            final OutputStream out = client.getOutputStream();
+            String requestLine;
+            while (!(requestLine = readLine(in)).isEmpty()) {
+                final Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    final int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+                final String contentLengthHeader = headers.get("content-length");
+                final int contentLength = null == contentLengthHeader ? 0 : Integer.parseInt(contentLengthHeader);
+                final byte[] body = new byte[contentLength];
+                int offset = 0;
+                while (offset < contentLength) {
+                    final int read = in.read(body, offset, contentLength - offset);
+                    if (read == -1) {
+                        return;
+                    }
+                    offset += read;
+                }
+                mLastMethod = requestLine.split(" ")[0];
+                mLastHeaders = Collections.unmodifiableMap(headers);
+                mLastBody = body;
+
+                if (mLatencyMillis > 0) {
+                    Thread.sleep(mLatencyMillis);
+                }
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n1".getBytes("UTF-8"));
+                out.flush();
+                synchronized (mRequests) {
+                    mRequests.incrementAndGet();
+                    mRequests.notifyAll();
+                }
+                if (mCloseAfterResponse) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.d(LOGTAG, "Stand-in server connection ended", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private final ServerSocket mSocket;
+    private final long mLatencyMillis;
+    private final boolean mCloseAfterResponse;
+    private final AtomicInteger mConnections = new AtomicInteger(0);
+    private final AtomicInteger mRequests = new AtomicInteger(0);
+    private volatile String mLastMethod;
+    private volatile Map<String, String> mLastHeaders = Collections.emptyMap();
+    private volatile byte[] mLastBody;
+
+    private static final String LOGTAG = "MixpanelAPI.StandInServer";
+}
@@ -0,0 +1,133 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.mixpanel.android.util.Base64Coder;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StreamingBatchBodyTest {
+
+    @Before
+    public void setUp() throws Exception {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        mAdapter = new MPDbAdapter(context, "mixpanel_streaming_test");
+        mAdapter.deleteDB();
+
+        for (int i = 0; i < 120; i++) {
+            final JSONObject event = new JSONObject();
+            event.put("event", "Streamed Event " + i);
+            // Non-ascii text and characters that base64 and form encoding treat specially
+            event.put("properties", new JSONObject().put("token", TOKEN).put("text", "été + ☃ / = & " + i));
+            mAdapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, i % 4 == 0);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mAdapter.deleteDB();
+    }
+
+    @Test
+    public void testFormBodyMatchesGeneratedBatch() throws Exception {
+        final String[] bounds = mAdapter.describeBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, "0", 50, Integer.MAX_VALUE);
+        final String[] batch = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true, "0", 50, Integer.MAX_VALUE);
+        assertNotNull(bounds);
+        assertEquals(batch[0], bounds[0]);
+        assertEquals("50", bounds[1]);
+        assertEquals(batch[2], bounds[2]);
+        assertEquals(batch[3], bounds[3]);
+
+        final StreamingBatchBody body = new StreamingBatchBody(mAdapter, MPDbAdapter.Table.EVENTS, TOKEN, true, "0", bounds[0], false, true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        final Uri form = Uri.parse("http://localhost/?" + out.toString("UTF-8"));
+        assertEquals("1", form.getQueryParameter("verbose"));
+        assertEquals(batch[1], Base64Coder.decodeString(form.getQueryParameter("data")));
+
+        // Writing again, as on a retry, sends the same batch
+        final ByteArrayOutputStream again = new ByteArrayOutputStream();
+        body.writeTo(again);
+        assertEquals(out.toString("UTF-8"), again.toString("UTF-8"));
+    }
+
+    @Test
+    public void testGzipBodyMatchesGeneratedBatch() throws Exception {
+        final String[] bounds = mAdapter.describeBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, "0", 50, 2000);
+        final String[] batch = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false, "0", 50, 2000);
+        assertEquals(batch[0], bounds[0]);
+        assertEquals(batch[3], bounds[3]);
+
+        final StreamingBatchBody body = new StreamingBatchBody(mAdapter, MPDbAdapter.Table.EVENTS, TOKEN, false, "0", bounds[0], true, false);
+        assertEquals("gzip", body.getContentEncoding());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            json.write(buffer, 0, read);
+        }
+        assertEquals(batch[1], json.toString("UTF-8"));
+    }
+
+    @Test
+    public void testDatabaseErrorFailsBody() throws Exception {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final MPDbAdapter failingAdapter = new MPDbAdapter(context, "mixpanel_streaming_test") {
+            @Override
+            Cursor queryBatchRows(SQLiteDatabase db, String query, String[] selectionArgs) {
+                return new CursorWrapper(super.queryBatchRows(db, query, selectionArgs)) {
+                    @Override
+                    public boolean moveToNext() {
+                        if (getPosition() == 9) {
+                            throw new SQLiteException("Simulated failure reading the eleventh row");
+                        }
+                        return super.moveToNext();
+                    }
+                };
+            }
+        };
+        final String[] bounds = failingAdapter.describeBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, "0", 50, Integer.MAX_VALUE);
+        final StreamingBatchBody body = new StreamingBatchBody(failingAdapter, MPDbAdapter.Table.EVENTS, TOKEN, true, "0", bounds[0], false, true);
+
+        try {
+            body.writeTo(new ByteArrayOutputStream());
+            fail("A batch cut short by a database error must not be sent");
+        } catch (final IOException e) {
+            assertEquals(SQLiteException.class, e.getCause().getClass());
+        }
+    }
+
+    private MPDbAdapter mAdapter;
+
+    private static final String TOKEN = "Streaming Token";
+}
@@ -0,0 +1,143 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Not a correctness test - measures track() from many threads while another thread keeps
+ * registering super properties, against the same threads with no registrations going on.
+ * Results are logged under the "MixpanelAPI.Benchmark" tag.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SuperPropertiesBenchmarkTest {
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+    private static final int[] TRACKING_THREADS = { 1, 2, 4, 8 };
+    private static final int EVENTS_PER_THREAD = 2000;
+    private static final int SUPER_PROPERTIES = 20;
+
+    @Test
+    public void testTrackWhileRegistering() throws Exception {
+        final Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        final AnalyticsMessages discardingMessages = new AnalyticsMessages(context) {
+            @Override
+            public void eventsMessage(EventDescription eventDescription) {
+                // Only the calling thread's work is measured
+            }
+        };
+        final MixpanelAPI mixpanel = new TestUtils.CleanMixpanelAPI(context, new TestUtils.EmptyPreferences(context), "Super Properties Benchmark Token") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return discardingMessages;
+            }
+        };
+
+        final JSONObject superProperties = new JSONObject();
+        for (int i = 0; i < SUPER_PROPERTIES; i++) {
+            superProperties.put("super property " + i, "value " + i);
+        }
+        mixpanel.registerSuperProperties(superProperties);
+
+        for (int threads : TRACKING_THREADS) {
+            final Result quiet = runTracking(mixpanel, threads, false);
+            final Result contended = runTracking(mixpanel, threads, true);
+            Log.i(LOGTAG, "track threads=" + threads +
+                    " quiet: " + quiet.eventsPerSecond + " events/sec, p99 " + quiet.p99Nanos + "ns" +
+                    " | while registering: " + contended.eventsPerSecond + " events/sec, p99 " + contended.p99Nanos + "ns" +
+                    " (" + contended.registrations + " registrations)");
+        }
+    }
+
+    private Result runTracking(final MixpanelAPI mixpanel, final int threadCount, boolean register) throws InterruptedException {
+        final long[][] latencies = new long[threadCount][EVENTS_PER_THREAD];
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean tracking = new AtomicBoolean(true);
+        final AtomicLong registrations = new AtomicLong(0);
+
+        final Thread registrar = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (tracking.get()) {
+                        final long n = registrations.getAndIncrement();
+                        mixpanel.registerSuperProperties(new JSONObject().put("changing property", n));
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        if (register) {
+            registrar.start();
+        }
+
+        final Thread[] trackers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long[] threadLatencies = latencies[i];
+            trackers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int e = 0; e < EVENTS_PER_THREAD; e++) {
+                        final long callStart = System.nanoTime();
+                        mixpanel.track("Benchmark Event");
+                        threadLatencies[e] = System.nanoTime() - callStart;
+                    }
+                }
+            };
+            trackers[i].start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Thread tracker : trackers) {
+            tracker.join();
+        }
+        final long elapsed = System.nanoTime() - begin;
+        tracking.set(false);
+        if (register) {
+            registrar.join();
+        }
+
+        final int totalEvents = threadCount * EVENTS_PER_THREAD;
+        final long[] allLatencies = new long[totalEvents];
+        for (int i = 0; i < threadCount; i++) {
+            System.arraycopy(latencies[i], 0, allLatencies, i * EVENTS_PER_THREAD, EVENTS_PER_THREAD);
+        }
+        Arrays.sort(allLatencies);
+
+        final Result ret = new Result();
+        ret.eventsPerSecond = totalEvents * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        ret.p99Nanos = allLatencies[(int) (totalEvents * 0.99)];
+        ret.registrations = registrations.get();
+        return ret;
+    }
+
+    private static class Result {
+        long eventsPerSecond;
+        long p99Nanos;
+        long registrations;
+    }
+}
@@ -1,21 +1,19 @@
 package com.mixpanel.android.mpmetrics;
 
 import android.content.Context;
-import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.os.SystemClock;
-import android.util.DisplayMetrics;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GoogleApiAvailability;
-import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.ConnectivityMonitor;
 import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.PooledHttpService;
 import com.mixpanel.android.util.RemoteService;
+import com.mixpanel.android.util.StreamingRemoteService;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -23,10 +21,20 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -44,8 +52,39 @@ import javax.net.ssl.SSLSocketFactory;
     /* package */ AnalyticsMessages(final Context context) {
         mContext = context;
         mConfig = getConfig(context);
+        final int eventQueueCapacity = mConfig.getEventQueueCapacity();
+        mEventQueue = eventQueueCapacity > 0 ? new MPSCRingBuffer<EventDescription>(eventQueueCapacity) : null;
+        mEventDrainPending = new AtomicBoolean(false);
+        // A single pooled service for every endpoint, so requests can reuse each other's connections
+        final int maxConnections = mConfig.getMaxConnections();
+        mPooledPoster = maxConnections > 0 ? new PooledHttpService(maxConnections, mConfig.getConnectionIdleTimeout()) : null;
         mWorker = createWorker();
-        getPoster().checkIsMixpanelBlocked();
+
+        mConnectivityListener = new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor monitor, boolean reconnected) {
+                if (reconnected) {
+                    final Message m = Message.obtain();
+                    m.what = CONNECTIVITY_RESTORED;
+                    mWorker.runMessage(m);
+                }
+            }
+        };
+        ConnectivityMonitor.getInstance(context).addListener(mConnectivityListener);
+
+        if (mConfig.getRadioAwareFlush()) {
+            mFlushScheduler = new FlushScheduler(context, ConnectivityMonitor.getInstance(context), new FlushScheduler.Listener() {
+                @Override
+                public void onFlushOpportunity() {
+                    final Message m = Message.obtain();
+                    m.what = FLUSH_OPPORTUNITY;
+                    mWorker.runMessage(m);
+                }
+            });
+            mFlushScheduler.start();
+        } else {
+            mFlushScheduler = null;
+        }
     }
 
     protected Worker createWorker() {
@@ -73,11 +112,25 @@ import javax.net.ssl.SSLSocketFactory;
         }
     }
 
+    // Must be thread safe.
     public void eventsMessage(final EventDescription eventDescription) {
-        final Message m = Message.obtain();
-        m.what = ENQUEUE_EVENTS;
-        m.obj = eventDescription;
-        mWorker.runMessage(m);
+        if (null == mEventQueue || !mEventQueue.offer(eventDescription)) {
+            // No buffer, or the worker has fallen a full buffer behind.
+            // Post the event directly, which is slower but never drops it.
+            final Message m = Message.obtain();
+            m.what = ENQUEUE_EVENTS;
+            m.obj = eventDescription;
+            mWorker.runMessage(m);
+            return;
+        }
+
+        // Only the first producer after the worker starts a drain needs to wake it up,
+        // everyone else just leaves their event in the buffer.
+        if (mEventDrainPending.compareAndSet(false, true)) {
+            final Message m = Message.obtain();
+            m.what = DRAIN_EVENTS;
+            mWorker.runMessage(m);
+        }
     }
 
     // Must be thread safe.
@@ -125,6 +178,15 @@ import javax.net.ssl.SSLSocketFactory;
         mWorker.runMessage(m);
     }
 
+    // Must be thread safe.
+    public void postToServer(final FlushFuture flush) {
+        final Message m = Message.obtain();
+        m.what = FLUSH_WITH_DEADLINE;
+        m.obj = flush;
+
+        mWorker.runMessage(m);
+    }
+
     public void installDecideCheck(final DecideMessages check) {
         final Message m = Message.obtain();
         m.what = INSTALL_DECIDE_CHECK;
@@ -150,6 +212,10 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     public void hardKill() {
+        ConnectivityMonitor.getInstance(mContext).removeListener(mConnectivityListener);
+        if (null != mFlushScheduler) {
+            mFlushScheduler.stop();
+        }
         final Message m = Message.obtain();
         m.what = KILL_WORKER;
 
@@ -172,6 +238,9 @@ import javax.net.ssl.SSLSocketFactory;
     }
 
     protected RemoteService getPoster() {
+        if (null != mPooledPoster) {
+            return mPooledPoster;
+        }
         return new HttpService();
     }
 
@@ -378,8 +447,11 @@ import javax.net.ssl.SSLSocketFactory;
                 super(looper);
                 mDbAdapter = null;
                 mSystemInformation = SystemInformation.getInstance(mContext);
+                mDeviceContext = DeviceContext.getInstance(mContext);
                 mDecideChecker = createDecideChecker();
                 mFlushInterval = mConfig.getFlushInterval();
+                mBatchSizePolicy = new BatchSizePolicy(mConfig.getMaxBatchBytes());
+                mInsertIdPrefix = Long.toHexString(new SecureRandom().nextLong());
             }
 
             protected DecideChecker createDecideChecker() {
@@ -392,12 +464,19 @@ import javax.net.ssl.SSLSocketFactory;
                     mDbAdapter = makeDbAdapter(mContext);
                     mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
                     mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    mDbAdapter.cleanupDeadLetters(System.currentTimeMillis() - mConfig.getDataExpiration());
                 }
 
                 try {
                     int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
                     String token = null;
 
+                    if (msg.what != DRAIN_EVENTS) {
+                        // Events still buffered were tracked before this message was sent, so they go first.
+                        // Otherwise a flush could miss them, or an opt out or reset could be followed by them.
+                        drainAllEvents();
+                    }
+
                     if (msg.what == ENQUEUE_PEOPLE) {
                         final PeopleDescription message = (PeopleDescription) msg.obj;
                         final MPDbAdapter.Table peopleTable = message.isAnonymous() ? MPDbAdapter.Table.ANONYMOUS_PEOPLE : MPDbAdapter.Table.PEOPLE;
@@ -416,19 +495,15 @@ import javax.net.ssl.SSLSocketFactory;
                         returnCode = mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.GROUPS, false);
                     } else if (msg.what == ENQUEUE_EVENTS) {
                         final EventDescription eventDescription = (EventDescription) msg.obj;
-                        try {
-                            final JSONObject message = prepareEventObject(eventDescription);
-                            logAboutMessageToMixpanel("Queuing event for sending later");
-                            logAboutMessageToMixpanel("    " + message.toString());
-                            token = eventDescription.getToken();
-
-                            DecideMessages decide = mDecideChecker.getDecideMessages(token);
-                            if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
-                                return;
-                            }
-                            returnCode = mDbAdapter.addJSON(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
-                        } catch (final JSONException e) {
-                            MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                        token = eventDescription.getToken();
+                        returnCode = enqueueEvent(eventDescription);
+                    } else if (msg.what == DRAIN_EVENTS) {
+                        // Clear the flag before draining, so an event offered after we
+                        // find the buffer empty will always schedule another drain.
+                        mEventDrainPending.set(false);
+                        final Map<String, Integer> groupReturnCodes = drainEventQueue(true);
+                        for (final Map.Entry<String, Integer> entry : groupReturnCodes.entrySet()) {
+                            checkFlushThreshold(entry.getValue(), entry.getKey());
                         }
                     } else if (msg.what == PUSH_ANONYMOUS_PEOPLE_RECORDS) {
                         final PushAnonymousPeopleDescription pushAnonymousPeopleDescription = (PushAnonymousPeopleDescription) msg.obj;
@@ -444,17 +519,46 @@ import javax.net.ssl.SSLSocketFactory;
                         int updatedEvents = mDbAdapter.rewriteEventDataWithProperties(description.getProperties(), description.getToken());
                         MPLog.d(LOGTAG, updatedEvents + " stored events were updated with new properties.");
                     } else if (msg.what == FLUSH_QUEUE) {
-                        logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
-                        updateFlushFrequency();
                         token = (String) msg.obj;
-                        boolean shouldCheckDecide = msg.arg1 == 1 ? true : false;
-                        sendAllData(mDbAdapter, token);
-                        if (shouldCheckDecide && SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                        if (msg.arg2 != SCHEDULED_FLUSH || !deferScheduledFlush(token, msg.arg1)) {
+                            logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
+                            updateFlushFrequency();
+                            boolean shouldCheckDecide = msg.arg1 == 1 ? true : false;
+                            sendAllData(mDbAdapter, token);
+                            if (shouldCheckDecide && SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
+                                try {
+                                    mDecideChecker.runDecideCheck(token, getPoster());
+                                } catch (RemoteService.ServiceUnavailableException e) {
+                                    mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                                }
+                            }
+                        }
+                    } else if (msg.what == FLUSH_WITH_DEADLINE) {
+                        final FlushFuture flush = (FlushFuture) msg.obj;
+                        token = flush.getToken();
+                        logAboutMessageToMixpanel("Flushing queue with " + flush.getRemainingMillis() + " ms to go");
+                        updateFlushFrequency();
+                        if (null == token) {
+                            for (final String queuedToken : mDbAdapter.getQueuedTokens()) {
+                                sendAllData(mDbAdapter, queuedToken, flush);
+                            }
+                        } else {
+                            sendAllData(mDbAdapter, token, flush);
+                        }
+                        flush.finish();
+                    } else if (msg.what == FLUSH_OPPORTUNITY) {
+                        if (!mDeferredFlushes.isEmpty() && mFlushScheduler.isFlushCheap()) {
+                            for (final String deferredToken : mDeferredFlushes.keySet()) {
+                                logAboutMessageToMixpanel("Sending held back flush for project " + deferredToken + " while it is cheap");
+                                mFlushScheduler.onWakeupAvoided();
+                                final Message flushMessage = Message.obtain();
+                                flushMessage.what = FLUSH_QUEUE;
+                                flushMessage.obj = deferredToken;
+                                flushMessage.arg1 = 1;
+                                sendMessage(flushMessage);
                             }
+                            // Their deadline flushes stay queued, and are dropped by deferScheduledFlush if nothing is left to send by then
+                            mDeferredFlushes.clear();
                         }
                     } else if (msg.what == INSTALL_DECIDE_CHECK) {
                         logAboutMessageToMixpanel("Installing a check for in-app notifications");
@@ -474,6 +578,20 @@ import javax.net.ssl.SSLSocketFactory;
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.PEOPLE, token);
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.GROUPS, token);
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token);
+                        mDbAdapter.cleanupDeadLetters(token);
+                    } else if (msg.what == CONNECTIVITY_RESTORED) {
+                        // Queues stopped draining while we were offline, so don't leave them for the next scheduled flush
+                        if (mFlushInterval >= 0) {
+                            for (final String knownToken : mKnownTokens) {
+                                if (!hasMessages(FLUSH_QUEUE, knownToken) && hasAvailableEndpoint(knownToken)) {
+                                    logAboutMessageToMixpanel("Connectivity is back - flushing queue for project " + knownToken);
+                                    final Message flushMessage = Message.obtain();
+                                    flushMessage.what = FLUSH_QUEUE;
+                                    flushMessage.obj = knownToken;
+                                    sendMessage(flushMessage);
+                                }
+                            }
+                        }
                     } else if (msg.what == KILL_WORKER) {
                         MPLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
@@ -486,33 +604,7 @@ import javax.net.ssl.SSLSocketFactory;
                     }
 
                     ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null) {
-                        logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
-                        updateFlushFrequency();
-                        sendAllData(mDbAdapter, token);
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
-                        }
-                    } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
-                        // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
-                        // of delayed flushes already enqueued from inside of this thread.
-                        // Callers outside of this thread can still send
-                        // a flush right here, so we may end up with two flushes
-                        // in our queue, but we're OK with that.
-
-                        logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
-                            final Message flushMessage = Message.obtain();
-                            flushMessage.what = FLUSH_QUEUE;
-                            flushMessage.obj = token;
-                            flushMessage.arg1 = 1;
-                            sendMessageDelayed(flushMessage, mFlushInterval);
-                        }
-                    }
+                    checkFlushThreshold(returnCode, token);
                 } catch (final RuntimeException e) {
                     MPLog.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
@@ -531,203 +623,521 @@ import javax.net.ssl.SSLSocketFactory;
                 return mTrackEngageRetryAfter;
             }
 
+            // Returns the number of queued rows for the event's project, or an MPDbAdapter error code
+            private int enqueueEvent(EventDescription eventDescription) {
+                int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
+                try {
+                    final JSONObject message = prepareEventObject(eventDescription);
+                    logAboutMessageToMixpanel("Queuing event for sending later");
+                    logAboutMessageToMixpanel("    " + message.toString());
+                    final String token = eventDescription.getToken();
+
+                    DecideMessages decide = mDecideChecker.getDecideMessages(token);
+                    if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
+                        return returnCode;
+                    }
+                    returnCode = mDbAdapter.addJSON(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
+                } catch (final JSONException e) {
+                    MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                }
+                return returnCode;
+            }
+
+            // Writes every buffered event to the DB, and checks whether their projects need a flush
+            private void drainAllEvents() {
+                if (null == mEventQueue || mEventQueue.isEmpty()) {
+                    return;
+                }
+                for (final Map.Entry<String, Integer> entry : drainEventQueue(false).entrySet()) {
+                    checkFlushThreshold(entry.getValue(), entry.getKey());
+                }
+            }
+
+            // Writes buffered events to the DB as a single group commit, returning the
+            // last meaningful addJSON result for each token in the group. A bounded group
+            // stops at GroupCommitMaxEvents or the GroupCommitWindow, and leaves the rest
+            // to another drain.
+            private Map<String, Integer> drainEventQueue(boolean bounded) {
+                final Map<String, Integer> ret = new HashMap<String, Integer>();
+                final int maxEvents = mConfig.getGroupCommitMaxEvents();
+                final long groupDeadline = SystemClock.elapsedRealtime() + mConfig.getGroupCommitWindow();
+                int groupSize = 0;
+
+                mDbAdapter.beginGroupCommit();
+                try {
+                    EventDescription eventDescription;
+                    while ((eventDescription = mEventQueue.poll()) != null) {
+                        final String eventToken = eventDescription.getToken();
+                        final int returnCode = enqueueEvent(eventDescription);
+                        final Integer previous = ret.get(eventToken);
+                        // Don't let a filtered event hide a row count, or anything hide running out of space
+                        if (null == previous || (previous != MPDbAdapter.DB_OUT_OF_MEMORY_ERROR && (returnCode > 0 || previous <= 0))) {
+                            ret.put(eventToken, returnCode);
+                        }
+
+                        groupSize++;
+                        if (bounded && (groupSize >= maxEvents || SystemClock.elapsedRealtime() >= groupDeadline)) {
+                            // Leave the rest for another group, so we don't hold the transaction
+                            // (or starve other messages) through a long burst.
+                            if (!mEventQueue.isEmpty() && mEventDrainPending.compareAndSet(false, true)) {
+                                sendEmptyMessage(DRAIN_EVENTS);
+                            }
+                            break;
+                        }
+                    }
+                } finally {
+                    mDbAdapter.endGroupCommit();
+                }
+
+                return ret;
+            }
+
+            private void checkFlushThreshold(int returnCode, String token) {
+                if (null != token) {
+                    mKnownTokens.add(token); // so a returning connection can flush every project seen here
+                }
+                if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && token != null && hasAvailableEndpoint(token)) {
+                    logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
+                    updateFlushFrequency();
+                    sendAllData(mDbAdapter, token);
+                    if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
+                        try {
+                            mDecideChecker.runDecideCheck(token, getPoster());
+                        } catch (RemoteService.ServiceUnavailableException e) {
+                            mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                        }
+                    }
+                } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, token)) {
+                    // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
+                    // of delayed flushes already enqueued from inside of this thread.
+                    // Callers outside of this thread can still send
+                    // a flush right here, so we may end up with two flushes
+                    // in our queue, but we're OK with that.
+
+                    logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
+                    if (mFlushInterval >= 0) {
+                        final Message flushMessage = Message.obtain();
+                        flushMessage.what = FLUSH_QUEUE;
+                        flushMessage.obj = token;
+                        flushMessage.arg1 = 1;
+                        flushMessage.arg2 = SCHEDULED_FLUSH;
+                        sendMessageDelayed(flushMessage, mFlushInterval);
+                    }
+                }
+            }
+
+            // Holds back a scheduled flush that would wake the radio, returning true if it was held back.
+            // It is retried at its deadline, or sent earlier once FlushScheduler reports it is cheap.
+            // Also returns true, dropping the flush, if the project has nothing queued.
+            private boolean deferScheduledFlush(String token, int shouldCheckDecide) {
+                if (null == mFlushScheduler) {
+                    return false;
+                }
+
+                final long now = SystemClock.elapsedRealtime();
+                Long deferredSince = mDeferredFlushes.get(token);
+                if (null == deferredSince && !mDbAdapter.getQueuedTokens().contains(token)) {
+                    // Nothing to send, usually because a held back flush was already sent early, so don't wake the radio at all
+                    logAboutMessageToMixpanel("Dropping scheduled flush for project " + token + ", nothing is queued");
+                    return true;
+                }
+                if (mFlushScheduler.isFlushCheap()) {
+                    if (null != deferredSince) {
+                        mDeferredFlushes.remove(token);
+                        mFlushScheduler.onWakeupAvoided();
+                    }
+                    return false;
+                }
+
+                if (null == deferredSince) {
+                    deferredSince = now;
+                    mDeferredFlushes.put(token, deferredSince);
+                }
+                final long remaining = deferredSince + mConfig.getMaxFlushDeferral() - now;
+                if (remaining <= 0) {
+                    mDeferredFlushes.remove(token);
+                    return false;
+                }
+
+                logAboutMessageToMixpanel("Holding back flush for project " + token + " until the radio is active, for at most " + remaining + " ms");
+                final Message flushMessage = Message.obtain();
+                flushMessage.what = FLUSH_QUEUE;
+                flushMessage.obj = token;
+                flushMessage.arg1 = shouldCheckDecide;
+                flushMessage.arg2 = SCHEDULED_FLUSH;
+                sendMessageDelayed(flushMessage, remaining);
+                return true;
+            }
+
             private void sendAllData(MPDbAdapter dbAdapter, String token) {
+                sendAllData(dbAdapter, token, null);
+            }
+
+            // If flush isn't null, stops at its deadline and reports what was sent to it
+            private void sendAllData(MPDbAdapter dbAdapter, String token, FlushFuture flush) {
                 final RemoteService poster = getPoster();
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToMixpanel("Not flushing data to Mixpanel because the device is not connected to the internet.");
+                    if (null != flush) {
+                        flush.onTableFinished(MPDbAdapter.Table.EVENTS, FlushResult.Status.OFFLINE);
+                        flush.onTableFinished(MPDbAdapter.Table.PEOPLE, FlushResult.Status.OFFLINE);
+                        flush.onTableFinished(MPDbAdapter.Table.GROUPS, FlushResult.Status.OFFLINE);
+                    }
                     return;
                 }
 
-                sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint());
-                sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint());
-                sendData(dbAdapter, token, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint());
+                sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint(), flush);
+                sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint(), flush);
+                sendData(dbAdapter, token, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint(), flush);
             }
 
-            private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url) {
+            private void sendData(MPDbAdapter dbAdapter, String token, MPDbAdapter.Table table, String url, FlushFuture flush) {
+                if (null != flush && flush.isExpired()) {
+                    flush.onTableFinished(table, FlushResult.Status.TIMED_OUT);
+                    return;
+                }
+
                 final RemoteService poster = getPoster();
                 DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
                 boolean includeAutomaticEvents = true;
                 if (decideMessages == null || decideMessages.isAutomaticEventsEnabled() == null) {
                     includeAutomaticEvents = false;
                 }
-                String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                Integer queueCount = 0;
-                if (eventsData != null) {
-                    queueCount = Integer.valueOf(eventsData[2]);
+                final EndpointRetryState retryState = getRetryState(token, url);
+                if (!retryState.allowRequest(SystemClock.elapsedRealtime())) {
+                    logAboutMessageToMixpanel("Not posting to " + url + " until " + (retryState.getRetryAtMillis() - SystemClock.elapsedRealtime()) + " ms from now");
+                    if (null != flush) {
+                        flush.onTableFinished(table, FlushResult.Status.BACKING_OFF);
+                    }
+                    return;
                 }
 
-                while (eventsData != null && queueCount > 0) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+                final Boolean isWifi = mSystemInformation.isWifiConnected();
+                // A half-open circuit only gets one batch in flight, to probe whether the endpoint has recovered.
+                // Only events are pipelined: Mixpanel drops events sent twice by their $insert_id, but people
+                // and group updates must arrive in order, and exactly once, so they are sent one at a time.
+                final int window = retryState.getState() == EndpointRetryState.State.HALF_OPEN || table != MPDbAdapter.Table.EVENTS ?
+                        1 : Math.max(mConfig.getFlushWindow(), 1);
+                // Streamed bodies read the database while they are sent, so they can't leave the worker thread.
+                // Uploads with a deadline always do, so the worker can stop waiting for them.
+                // Request bodies other than forms need a poster that can send them
+                final boolean postBodies = poster instanceof StreamingRemoteService;
+                final boolean streamBodies = postBodies && mConfig.getStreamRequestBodies() && window == 1 && null == flush;
+                final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
+
+                // Batches are read ahead of the rows in flight, and their rows are deleted in the
+                // order they were read, so only ever up to the last of a run of successful uploads.
+                final Deque<BatchUpload> inFlight = new ArrayDeque<BatchUpload>();
+                String afterId = "0";
+                boolean drained = false;
+                boolean failed = false;
+                boolean timedOut = false;
+                while (true) {
+                    while (!drained && !failed && !timedOut && inFlight.size() < window) {
+                        if (null != flush && flush.isExpired()) {
+                            timedOut = true;
+                            break;
+                        }
+                        final int byteBudget = mBatchSizePolicy.getByteBudget(table, isWifi);
+                        final String[] eventsData = readBatch(dbAdapter, table, token, includeAutomaticEvents, afterId, byteBudget, streamBodies);
+                        if (eventsData == null || Integer.valueOf(eventsData[2]) <= 0) {
+                            drained = true;
+                            break;
+                        }
+                        final BatchUpload upload = new BatchUpload(poster, url, socketFactory, eventsData, byteBudget);
+                        if (streamBodies) {
+                            upload.prepareBody(new StreamingBatchBody(dbAdapter, table, token, includeAutomaticEvents,
+                                    afterId, eventsData[0], mConfig.getGzipRequests(), MPConfig.DEBUG), MPConfig.DEBUG);
+                        } else if (postBodies && mConfig.getGzipRequests()) {
+                            upload.prepareGzip(eventsData[1], MPConfig.DEBUG);
+                        } else {
+                            upload.prepareForm(eventsData[1], MPConfig.DEBUG);
+                        }
+                        if (window > 1 || null != flush) {
+                            upload.submit(getUploadExecutor());
+                        }
+                        inFlight.add(upload);
+                        afterId = eventsData[0];
+                    }
 
-                    final String encodedData = Base64Coder.encodeString(rawMessage);
-                    final Map<String, Object> params = new HashMap<String, Object>();
-                    params.put("data", encodedData);
-                    if (MPConfig.DEBUG) {
-                        params.put("verbose", "1");
+                    final BatchUpload upload = inFlight.poll();
+                    if (null == upload) {
+                        break;
+                    }
+                    if (!awaitUpload(upload, table, flush)) {
+                        // Left to finish in the background. Its rows and all after it stay queued,
+                        // and Mixpanel drops the events sent again by their $insert_ids.
+                        logAboutMessageToMixpanel("Flush deadline passed, leaving " + (inFlight.size() + 1) + " uploads to " + url + " unconfirmed");
+                        timedOut = true;
+                        inFlight.clear();
+                        break;
+                    }
+                    if (failed) {
+                        // Rows after a failed batch stay queued, even if they were sent, and are sent again on retry.
+                        // Only events are pipelined, and Mixpanel drops the copies by their $insert_id.
+                        mBatchSizePolicy.onUploadFinished(table, upload.getByteBudget(), getBatchBytes(upload), upload.getLatencyMillis(), !isConnectionFailure(upload));
+                        continue;
                     }
 
-                    boolean deleteEvents = true;
-                    byte[] response;
-                    try {
-                        final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-                        response = poster.performRequest(url, params, socketFactory);
-                        if (null == response) {
-                            deleteEvents = false;
-                            logAboutMessageToMixpanel("Response was null, unexpected failure posting to " + url + ".");
-                        } else {
-                            deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                            String parsedResponse;
-                            try {
-                                parsedResponse = new String(response, "UTF-8");
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("UTF not supported on this platform?", e);
+                    if (onUploadFinished(upload, token, table, url, streamBodies)) {
+                        if (retryState.getState() != EndpointRetryState.State.CLOSED) {
+                            final int failures = retryState.onSuccess();
+                            scheduleRetryFlush(token);
+                            final RetryMetricsListener listener = mRetryMetricsListener;
+                            if (null != listener) {
+                                listener.onRecovered(token, url, failures);
                             }
-                            if (mFailedRetries > 0) {
-                                mFailedRetries = 0;
-                                removeMessages(FLUSH_QUEUE, token);
-                            }
-
-                            logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" + rawMessage);
-                            logAboutMessageToMixpanel("Response was " + parsedResponse);
                         }
-                    } catch (final OutOfMemoryError e) {
-                        MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                    } catch (final MalformedURLException e) {
-                        MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                    } catch (final RemoteService.ServiceUnavailableException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                        mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
-                    } catch (final SocketTimeoutException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                    } catch (final IOException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                    }
-
-                    if (deleteEvents) {
                         logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table, token, includeAutomaticEvents);
+                        dbAdapter.cleanupEvents(upload.getEventsData()[0], table, token, includeAutomaticEvents);
+                        if (null != flush) {
+                            flush.onBatchSent(table, getBatchRows(upload, streamBodies), getBatchBytes(upload));
+                        }
+                    } else if (upload.getFailure() instanceof RemoteService.ClientErrorException) {
+                        // Batches read after a rejected one are sent again once its rows are resolved
+                        for (BatchUpload next = inFlight.poll(); null != next; next = inFlight.poll()) {
+                            if (!awaitUpload(next, table, flush)) {
+                                continue;
+                            }
+                            mBatchSizePolicy.onUploadFinished(table, next.getByteBudget(), getBatchBytes(next), next.getLatencyMillis(), !isConnectionFailure(next));
+                        }
+                        final BatchUpload failedUpload = bisectRejectedBatch(dbAdapter, poster, socketFactory, token, table, url,
+                                includeAutomaticEvents, upload, getBatchRows(upload, streamBodies), flush);
+                        if (null == failedUpload) {
+                            // Every row up to the end of the rejected batch was sent or set aside
+                            afterId = "0";
+                            drained = false;
+                        } else {
+                            failed = true;
+                            onBatchFailed(failedUpload, retryState, token, url);
+                        }
                     } else {
-                        removeMessages(FLUSH_QUEUE, token);
-                        mTrackEngageRetryAfter = Math.max((long)Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
-                        mTrackEngageRetryAfter = Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
-                        final Message flushMessage = Message.obtain();
-                        flushMessage.what = FLUSH_QUEUE;
-                        flushMessage.obj = token;
-                        sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
-                        mFailedRetries++;
-                        logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
-                        break;
+                        failed = true;
+                        onBatchFailed(upload, retryState, token, url);
                     }
+                }
 
-                    eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                    if (eventsData != null) {
-                        queueCount = Integer.valueOf(eventsData[2]);
-                    }
+                if (null != flush) {
+                    flush.onTableFinished(table, failed ? FlushResult.Status.FAILED :
+                            timedOut ? FlushResult.Status.TIMED_OUT : FlushResult.Status.SUCCESS);
                 }
             }
 
-            private JSONObject getDefaultEventProperties()
-                    throws JSONException {
-                final JSONObject ret = new JSONObject();
-
-                ret.put("mp_lib", "android");
-                ret.put("$lib_version", MPConfig.VERSION);
+            private void onBatchFailed(BatchUpload upload, EndpointRetryState retryState, String token, String url) {
+                final Exception failure = upload.getFailure();
+                final long retryAfterMillis = failure instanceof RemoteService.ServiceUnavailableException ?
+                        ((RemoteService.ServiceUnavailableException) failure).getRetryAfter() * 1000L : 0;
+                mTrackEngageRetryAfter = retryState.onFailure(SystemClock.elapsedRealtime(), retryAfterMillis);
+                scheduleRetryFlush(token);
+                logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
+                final RetryMetricsListener listener = mRetryMetricsListener;
+                if (null != listener) {
+                    listener.onRetryScheduled(token, url, retryState.getConsecutiveFailures(), mTrackEngageRetryAfter, retryAfterMillis);
+                }
+            }
 
-                // For querying together with data from other libraries
-                ret.put("$os", "Android");
-                ret.put("$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+            // Sends the oldest rows of a batch the server rejected again, in halves, until the rows it
+            // refuses on their own are found. Those are moved to the dead letter table so they can't
+            // hold up the queue. Rows are deleted as they are resolved, so every read starts at the
+            // front of the queue. Returns the upload that stopped the search if it failed for any
+            // other reason, or null once all of the rows were sent or set aside. If flush isn't null,
+            // also returns null at its deadline, leaving the rest of the rows queued.
+            private BatchUpload bisectRejectedBatch(MPDbAdapter dbAdapter, RemoteService poster, SSLSocketFactory socketFactory, String token,
+                                                    MPDbAdapter.Table table, String url, boolean includeAutomaticEvents, BatchUpload rejected, int rows,
+                                                    FlushFuture flush) {
+                final Deque<Integer> pending = new ArrayDeque<Integer>();
+                pending.push(rows);
+                while (!pending.isEmpty()) {
+                    if (null != flush && flush.isExpired()) {
+                        return null;
+                    }
+                    final int count = pending.pop();
+                    final String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents, "0", count, Integer.MAX_VALUE);
+                    if (null == eventsData) {
+                        // Rows that can't be read can't be resolved either, so back off rather than rejecting the batch again right away
+                        return rejected;
+                    }
 
-                ret.put("$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
-                ret.put("$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
-                ret.put("$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+                    final BatchUpload upload = new BatchUpload(poster, url, socketFactory, eventsData, Integer.MAX_VALUE);
+                    if (poster instanceof StreamingRemoteService && mConfig.getGzipRequests()) {
+                        upload.prepareGzip(eventsData[1], MPConfig.DEBUG);
+                    } else {
+                        upload.prepareForm(eventsData[1], MPConfig.DEBUG);
+                    }
+                    if (null != flush) {
+                        upload.submit(getUploadExecutor());
+                    }
+                    if (!awaitUpload(upload, table, flush)) {
+                        return null;
+                    }
 
-                try {
-                    try {
-                        final int servicesAvailable = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(mContext);
-                        switch (servicesAvailable) {
-                            case ConnectionResult.SUCCESS:
-                                ret.put("$google_play_services", "available");
-                                break;
-                            case ConnectionResult.SERVICE_MISSING:
-                                ret.put("$google_play_services", "missing");
-                                break;
-                            case ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED:
-                                ret.put("$google_play_services", "out of date");
-                                break;
-                            case ConnectionResult.SERVICE_DISABLED:
-                                ret.put("$google_play_services", "disabled");
-                                break;
-                            case ConnectionResult.SERVICE_INVALID:
-                                ret.put("$google_play_services", "invalid");
-                                break;
+                    final Exception failure = upload.getFailure();
+                    if (failure instanceof RemoteService.ClientErrorException) {
+                        final int covered = Integer.valueOf(eventsData[4]);
+                        if (covered <= 1) {
+                            final int responseCode = ((RemoteService.ClientErrorException) failure).getResponseCode();
+                            MPLog.w(LOGTAG, "Mixpanel rejected a record posted to " + url + " with HTTP " + responseCode + ", it won't be sent again.");
+                            dbAdapter.moveToDeadLetters(table, token, includeAutomaticEvents, "0", eventsData[0], responseCode);
+                        } else {
+                            // The first half is popped, and so sent, first
+                            pending.push(covered - covered / 2);
+                            pending.push(covered / 2);
+                        }
+                    } else if (onUploadFinished(upload, token, table, url, false)) {
+                        dbAdapter.cleanupEvents(eventsData[0], table, token, includeAutomaticEvents);
+                        if (null != flush) {
+                            flush.onBatchSent(table, Integer.valueOf(eventsData[4]), Integer.valueOf(eventsData[3]));
                         }
-                    } catch (RuntimeException e) {
-                        // Turns out even checking for the service will cause explosions
-                        // unless we've set up meta-data
-                        ret.put("$google_play_services", "not configured");
+                    } else {
+                        return upload;
                     }
-
-                } catch (NoClassDefFoundError e) {
-                    ret.put("$google_play_services", "not included");
                 }
+                return null;
+            }
 
-                final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
-                ret.put("$screen_dpi", displayMetrics.densityDpi);
-                ret.put("$screen_height", displayMetrics.heightPixels);
-                ret.put("$screen_width", displayMetrics.widthPixels);
+            // Waits for upload, returning false if it was left to finish in the background at the
+            // deadline of flush. Only event uploads are left: Mixpanel drops events it already has by
+            // their $insert_id, but would apply people and group updates sent again twice, so those
+            // are waited for past the deadline. No new uploads are started after it either way.
+            private boolean awaitUpload(BatchUpload upload, MPDbAdapter.Table table, FlushFuture flush) {
+                if (null == flush) {
+                    upload.await();
+                    return true;
+                }
+                if (upload.await(flush.getRemainingMillis())) {
+                    return true;
+                }
+                if (table == MPDbAdapter.Table.EVENTS) {
+                    return false;
+                }
+                logAboutMessageToMixpanel("Flush deadline passed, waiting for an upload of " + table.getName() + " that can't be sent twice");
+                upload.await();
+                return true;
+            }
 
-                final String applicationVersionName = mSystemInformation.getAppVersionName();
-                if (null != applicationVersionName) {
-                    ret.put("$app_version", applicationVersionName);
-                    ret.put("$app_version_string", applicationVersionName);
+            // Acts on the outcome of a finished upload, returning true if its rows should be deleted
+            private boolean onUploadFinished(BatchUpload upload, String token, MPDbAdapter.Table table, String url, boolean streamBodies) {
+                boolean deleteEvents = true;
+                final byte[] response = upload.getResponse();
+                final Exception failure = upload.getFailure();
+                if (null != upload.getError()) {
+                    MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", upload.getError());
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else if (failure instanceof MalformedURLException) {
+                    MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", failure);
+                } else if (null != failure) {
+                    logAboutMessageToMixpanel("Cannot post message to " + url + ".", failure);
+                    deleteEvents = false;
+                } else if (null == response) {
+                    deleteEvents = false;
+                    logAboutMessageToMixpanel("Response was null, unexpected failure posting to " + url + ".");
+                } else {
+                    deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
+                    String parsedResponse;
+                    try {
+                        parsedResponse = new String(response, "UTF-8");
+                    } catch (UnsupportedEncodingException e) {
+                        throw new RuntimeException("UTF not supported on this platform?", e);
+                    }
+                    // Streamed batches are described by a row count rather than held as a string
+                    logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" +
+                            (streamBodies ? upload.getEventsData()[1] + " streamed records" : upload.getEventsData()[1]));
+                    logAboutMessageToMixpanel("Response was " + parsedResponse);
                 }
 
-                 final Integer applicationVersionCode = mSystemInformation.getAppVersionCode();
-                 if (null != applicationVersionCode) {
-                    final String applicationVersion = String.valueOf(applicationVersionCode);
-                    ret.put("$app_release", applicationVersion);
-                    ret.put("$app_build_number", applicationVersion);
+                mBatchSizePolicy.onUploadFinished(table, upload.getByteBudget(), getBatchBytes(upload), upload.getLatencyMillis(), !isConnectionFailure(upload));
+                return deleteEvents;
+            }
+
+            // Reads the batch after afterId from table, or if streamBodies, only finds its bounds so StreamingBatchBody can read it later
+            private String[] readBatch(MPDbAdapter dbAdapter, MPDbAdapter.Table table, String token, boolean includeAutomaticEvents,
+                                       String afterId, int byteBudget, boolean streamBodies) {
+                if (streamBodies) {
+                    return dbAdapter.describeBatch(table, token, includeAutomaticEvents, afterId, mConfig.getMaxBatchRows(), byteBudget);
                 }
+                return dbAdapter.generateDataString(table, token, includeAutomaticEvents, afterId, mConfig.getMaxBatchRows(), byteBudget);
+            }
 
-                final Boolean hasNFC = mSystemInformation.hasNFC();
-                if (null != hasNFC)
-                    ret.put("$has_nfc", hasNFC.booleanValue());
+            private EndpointRetryState getRetryState(String token, String url) {
+                final String key = token + " " + url;
+                EndpointRetryState ret = mRetryStates.get(key);
+                if (null == ret) {
+                    ret = new EndpointRetryState(mRetryRandom);
+                    mRetryStates.put(key, ret);
+                }
+                return ret;
+            }
 
-                final Boolean hasTelephony = mSystemInformation.hasTelephony();
-                if (null != hasTelephony)
-                    ret.put("$has_telephone", hasTelephony.booleanValue());
+            // False only if every upload endpoint for token is backing off, so a flush couldn't send anything
+            private boolean hasAvailableEndpoint(String token) {
+                final long now = SystemClock.elapsedRealtime();
+                final String[] endpoints = { mConfig.getEventsEndpoint(), mConfig.getPeopleEndpoint(), mConfig.getGroupsEndpoint() };
+                for (String endpoint : endpoints) {
+                    final EndpointRetryState state = mRetryStates.get(token + " " + endpoint);
+                    if (null == state || !state.isBackingOff(now)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
 
-                final String carrier = mSystemInformation.getCurrentNetworkOperator();
-                if (null != carrier && !carrier.trim().isEmpty())
-                    ret.put("$carrier", carrier);
+            // Replaces any scheduled flush for token with one for when its first backed off endpoint may be retried
+            private void scheduleRetryFlush(String token) {
+                final String prefix = token + " ";
+                long retryAt = Long.MAX_VALUE;
+                for (Map.Entry<String, EndpointRetryState> entry : mRetryStates.entrySet()) {
+                    final EndpointRetryState state = entry.getValue();
+                    if (entry.getKey().startsWith(prefix) && state.getState() == EndpointRetryState.State.OPEN) {
+                        retryAt = Math.min(retryAt, state.getRetryAtMillis());
+                    }
+                }
 
-                final Boolean isWifi = mSystemInformation.isWifiConnected();
-                if (null != isWifi)
-                    ret.put("$wifi", isWifi.booleanValue());
+                removeMessages(FLUSH_QUEUE, token);
+                if (retryAt != Long.MAX_VALUE) {
+                    final Message flushMessage = Message.obtain();
+                    flushMessage.what = FLUSH_QUEUE;
+                    flushMessage.obj = token;
+                    sendMessageDelayed(flushMessage, Math.max(retryAt - SystemClock.elapsedRealtime(), 0));
+                }
+            }
 
-                final String radio = mSystemInformation.getPhoneRadioType(mContext);
-                if (null != radio)
-                    ret.put("$radio", radio);
+            // The number of rows the maximum ID of the upload covers
+            private int getBatchRows(BatchUpload upload, boolean streamBodies) {
+                final String[] eventsData = upload.getEventsData();
+                if (streamBodies) {
+                    return Integer.valueOf(eventsData[1]);
+                }
+                return eventsData.length > 4 ? Integer.valueOf(eventsData[4]) : mConfig.getMaxBatchRows();
+            }
 
-                final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
-                if (isBluetoothEnabled != null)
-                    ret.put("$bluetooth_enabled", isBluetoothEnabled);
+            private int getBatchBytes(BatchUpload upload) {
+                final String[] eventsData = upload.getEventsData();
+                return eventsData.length > 3 ? Integer.valueOf(eventsData[3]) : 0;
+            }
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null)
-                    ret.put("$bluetooth_version", bluetoothVersion);
+            // Errors from the server say nothing about the connection, see BatchSizePolicy
+            private boolean isConnectionFailure(BatchUpload upload) {
+                final Exception failure = upload.getFailure();
+                return failure instanceof IOException && !(failure instanceof MalformedURLException);
+            }
 
-                return ret;
+            // Sized for the largest window any flush may use, whichever flush gets here first
+            private ExecutorService getUploadExecutor() {
+                if (null == mUploadExecutor) {
+                    final int threads = Math.max(mConfig.getFlushWindow(), 1);
+                    mUploadExecutor = new ThreadPoolExecutor(threads, threads, UPLOAD_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>());
+                    mUploadExecutor.allowCoreThreadTimeOut(true);
+                }
+                return mUploadExecutor;
             }
 
             private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
                 final JSONObject eventObj = new JSONObject();
                 final JSONObject eventProperties = eventDescription.getProperties();
-                final JSONObject sendProperties = getDefaultEventProperties();
+                final JSONObject sendProperties = new JSONObject();
+                mDeviceContext.getSnapshot().putInto(sendProperties);
                 sendProperties.put("token", eventDescription.getToken());
                 if (eventProperties != null) {
                     for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
@@ -735,18 +1145,36 @@ import javax.net.ssl.SSLSocketFactory;
                         sendProperties.put(key, eventProperties.get(key));
                     }
                 }
+                if (!sendProperties.has("$insert_id")) {
+                    // Stored with the event, so every retry or replay of it is deduplicated by Mixpanel
+                    sendProperties.put("$insert_id", nextInsertId());
+                }
                 eventObj.put("event", eventDescription.getEventName());
                 eventObj.put("properties", sendProperties);
                 eventObj.put("$mp_metadata", eventDescription.getSessionMetadata());
                 return eventObj;
             }
 
+            // Unique for each event without a random draw per event: a random prefix for this
+            // worker, and a counter. At most 33 characters, within Mixpanel's 36 character limit.
+            private String nextInsertId() {
+                return mInsertIdPrefix + "-" + Long.toHexString(mInsertIdCounter++);
+            }
+
             private MPDbAdapter mDbAdapter;
+            private final DeviceContext mDeviceContext;
             private final DecideChecker mDecideChecker;
+            private final BatchSizePolicy mBatchSizePolicy;
+            private ThreadPoolExecutor mUploadExecutor; // created on the first pipelined flush
             private final long mFlushInterval;
             private long mDecideRetryAfter;
-            private long mTrackEngageRetryAfter;
-            private int mFailedRetries;
+            private long mTrackEngageRetryAfter; // the most recent backoff delay, for testing
+            private final Map<String, EndpointRetryState> mRetryStates = new HashMap<String, EndpointRetryState>(); // by token and endpoint
+            private final Set<String> mKnownTokens = new HashSet<String>();
+            private final String mInsertIdPrefix;
+            private long mInsertIdCounter;
+            private final Map<String, Long> mDeferredFlushes = new HashMap<String, Long>(); // held back since, by token
+            private final Random mRetryRandom = new Random();
         }// AnalyticsMessageHandler
 
         private void updateFlushFrequency() {
@@ -774,6 +1202,21 @@ import javax.net.ssl.SSLSocketFactory;
         private SystemInformation mSystemInformation;
     }
 
+    /**
+     * Sets a listener for the retry timing of uploads, or null to remove it.
+     */
+    public void setRetryMetricsListener(RetryMetricsListener listener) {
+        mRetryMetricsListener = listener;
+    }
+
+    /**
+     * @return how many scheduled flushes were held back and then sent while the radio was already
+     * active, or the device was on wifi or charging. Always 0 unless RadioAwareFlush is enabled.
+     */
+    public long getAvoidedRadioWakeups() {
+        return null == mFlushScheduler ? 0 : mFlushScheduler.getAvoidedWakeups();
+    }
+
     public long getTrackEngageRetryAfter() {
         return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).getTrackEngageRetryAfter();
     }
@@ -781,6 +1224,12 @@ import javax.net.ssl.SSLSocketFactory;
 
     // Used across thread boundaries
     private final Worker mWorker;
+    private final MPSCRingBuffer<EventDescription> mEventQueue;
+    private final AtomicBoolean mEventDrainPending;
+    private final RemoteService mPooledPoster;
+    private volatile RetryMetricsListener mRetryMetricsListener;
+    private final ConnectivityMonitor.Listener mConnectivityListener;
+    private final FlushScheduler mFlushScheduler;
     protected final Context mContext;
     protected final MPConfig mConfig;
 
@@ -794,9 +1243,16 @@ import javax.net.ssl.SSLSocketFactory;
     private static final int EMPTY_QUEUES = 6; // Remove any local (and pending to be flushed) events or people/group updates from the db
     private static final int CLEAR_ANONYMOUS_UPDATES = 7; // Remove anonymous people updates from DB
     private static final int REWRITE_EVENT_PROPERTIES = 8; // Update or add properties to existing queued events
+    private static final int DRAIN_EVENTS = 9; // push all events waiting in mEventQueue to events DB
+    private static final int CONNECTIVITY_RESTORED = 10; // flush every known project, the device is back online
+    private static final int FLUSH_OPPORTUNITY = 11; // send held back flushes if they no longer wake the radio
+    private static final int FLUSH_WITH_DEADLINE = 13; // like FLUSH_QUEUE, but stops at the deadline of a FlushFuture
+
+    private static final int SCHEDULED_FLUSH = 1; // arg2 of FLUSH_QUEUE messages that FlushScheduler may hold back
     private static final int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
 
     private static final String LOGTAG = "MixpanelAPI.Messages";
+    private static final long UPLOAD_THREAD_KEEP_ALIVE_SECONDS = 30;
 
     private static final Map<Context, AnalyticsMessages> sInstances = new HashMap<Context, AnalyticsMessages>();
 
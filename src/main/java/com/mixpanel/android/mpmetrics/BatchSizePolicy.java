@@ -0,0 +1,68 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Decides how many bytes of queued rows go into a single upload, separately for each table.
+ *
+ * <p>Each table starts with the full configured budget. The budget shrinks by half when an
+ * upload is slow or its connection fails, and grows again by a quarter after quick uploads
+ * that actually used most of it. Connections that aren't known to be wifi are capped at a fraction of the
+ * configured budget, since large requests over cellular are both slower and more likely to
+ * be cut off.
+ *
+ * <p>Not thread safe, instances should only be used by the worker thread.
+ */
+/* package */ class BatchSizePolicy {
+
+    public BatchSizePolicy(int maxBytes) {
+        mMaxBytes = Math.max(maxBytes, MIN_BYTES);
+        mBudgets = new EnumMap<MPDbAdapter.Table, Integer>(MPDbAdapter.Table.class);
+    }
+
+    /**
+     * @param table the table the next batch will be read from
+     * @param isWifi whether the device is on wifi, or null if that is unknown
+     * @return the most bytes of row data the next batch from table should hold
+     */
+    public int getByteBudget(MPDbAdapter.Table table, Boolean isWifi) {
+        final Integer budget = mBudgets.get(table);
+        final int ceiling = getCeiling(isWifi);
+        return null == budget ? ceiling : Math.min(budget, ceiling);
+    }
+
+    /**
+     * Adjusts the budget for table after an upload from it finishes.
+     *
+     * @param table the table the batch was read from
+     * @param budget the budget the batch was built with
+     * @param bytes the bytes of row data the batch actually held
+     * @param latencyMillis how long the upload took
+     * @param succeeded false if the upload was cut off or timed out. Errors from the server say
+     *     nothing about the size of the batch, so they count as success here.
+     */
+    public void onUploadFinished(MPDbAdapter.Table table, int budget, int bytes, long latencyMillis, boolean succeeded) {
+        int next = budget;
+        if (!succeeded || latencyMillis > TARGET_LATENCY_MILLIS) {
+            next = Math.max(budget / 2, MIN_BYTES);
+        } else if (latencyMillis < TARGET_LATENCY_MILLIS / 2 && bytes >= budget - budget / 4) {
+            next = Math.min(budget + budget / 4, mMaxBytes);
+        }
+        mBudgets.put(table, next);
+    }
+
+    private int getCeiling(Boolean isWifi) {
+        if (null != isWifi && isWifi) {
+            return mMaxBytes;
+        }
+        return Math.max(mMaxBytes / NON_WIFI_DIVISOR, MIN_BYTES);
+    }
+
+    private final int mMaxBytes;
+    private final Map<MPDbAdapter.Table, Integer> mBudgets;
+
+    private static final int MIN_BYTES = 8 * 1024;
+    private static final int NON_WIFI_DIVISOR = 4;
+    private static final long TARGET_LATENCY_MILLIS = 3000;
+}
@@ -0,0 +1,212 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.SystemClock;
+
+import com.mixpanel.android.util.Base64Coder;
+import com.mixpanel.android.util.BufferedRequestBody;
+import com.mixpanel.android.util.RemoteService;
+import com.mixpanel.android.util.StreamingRemoteService;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A single batch of queued rows on its way to Mixpanel. A batch is encoded with one of the
+ * prepare methods on the worker thread, then run() posts it, on the worker thread or on an
+ * upload thread, and records what happened for the worker thread to act on.
+ *
+ * <p>Not thread safe. Each step must happen-before the next, for example through a Future.
+ */
+/* package */ class BatchUpload implements Runnable {
+
+    public BatchUpload(RemoteService poster, String url, SSLSocketFactory socketFactory, String[] eventsData, int byteBudget) {
+        mPoster = poster;
+        mUrl = url;
+        mSocketFactory = socketFactory;
+        mEventsData = eventsData;
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * Sends rawMessage as a base64 encoded "data" form field.
+     */
+    public void prepareForm(String rawMessage, boolean verbose) {
+        try {
+            final Map<String, Object> params = new HashMap<String, Object>();
+            params.put("data", Base64Coder.encodeString(rawMessage));
+            if (verbose) {
+                params.put("verbose", "1");
+            }
+            mParams = params;
+        } catch (final OutOfMemoryError e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Sends rawMessage as gzip-compressed JSON. The poster must be a StreamingRemoteService.
+     */
+    public void prepareGzip(String rawMessage, boolean verbose) {
+        try {
+            mUrl = verbose ? mUrl + (mUrl.contains("?") ? "&" : "?") + "verbose=1" : mUrl;
+            mBody = BufferedRequestBody.gzipJson(rawMessage);
+        } catch (final IOException e) {
+            mFailure = e;
+        } catch (final OutOfMemoryError e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Sends body, which may read from the database and so must be run on the worker thread.
+     * The poster must be a StreamingRemoteService.
+     */
+    public void prepareBody(RemoteService.RequestBody body, boolean verbose) {
+        if (verbose && BufferedRequestBody.GZIP_CONTENT_ENCODING.equals(body.getContentEncoding())) {
+            mUrl = mUrl + (mUrl.contains("?") ? "&" : "?") + "verbose=1";
+        }
+        mBody = body;
+    }
+
+    @Override
+    public void run() {
+        if (null != mFailure || null != mError) {
+            return;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            if (null != mBody) {
+                mResponse = ((StreamingRemoteService) mPoster).postRequest(mUrl, mBody, mSocketFactory);
+            } else {
+                mResponse = mPoster.performRequest(mUrl, mParams, mSocketFactory);
+            }
+        } catch (final OutOfMemoryError e) {
+            mError = e;
+        } catch (final Exception e) {
+            mFailure = e;
+        }
+        mLatencyMillis = SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Starts posting the batch on executor, rather than in await().
+     */
+    public void submit(ExecutorService executor) {
+        mFuture = executor.submit(this);
+    }
+
+    /**
+     * Waits for a submitted batch to finish posting, or posts it on this thread if it wasn't submitted.
+     */
+    public void await() {
+        if (null == mFuture) {
+            run();
+            return;
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    mFuture.get();
+                    return;
+                } catch (final InterruptedException e) {
+                    // The upload is still using this object, so it can't be abandoned
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Like await(), but gives up waiting after timeoutMillis. A batch that is given up on is
+     * still posting, so none of its results may be read.
+     *
+     * @return true if the batch finished posting
+     */
+    public boolean await(long timeoutMillis) {
+        if (null == mFuture) {
+            run();
+            return true;
+        }
+
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    mFuture.get(Math.max(deadline - SystemClock.elapsedRealtime(), 0), TimeUnit.MILLISECONDS);
+                    return true;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final TimeoutException e) {
+                    return false;
+                } catch (final ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String[] getEventsData() {
+        return mEventsData;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public int getByteBudget() {
+        return mByteBudget;
+    }
+
+    // Null if the request failed, or if the poster returned null
+    public byte[] getResponse() {
+        return mResponse;
+    }
+
+    // The exception thrown while preparing or posting the batch, if any
+    public Exception getFailure() {
+        return mFailure;
+    }
+
+    public OutOfMemoryError getError() {
+        return mError;
+    }
+
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    private final RemoteService mPoster;
+    private final SSLSocketFactory mSocketFactory;
+    private final String[] mEventsData;
+    private final int mByteBudget;
+    private String mUrl;
+    private Map<String, Object> mParams;
+    private RemoteService.RequestBody mBody;
+    private byte[] mResponse;
+    private Exception mFailure;
+    private OutOfMemoryError mError;
+    private long mLatencyMillis;
+    private Future<?> mFuture;
+}
@@ -0,0 +1,251 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.util.DisplayMetrics;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GoogleApiAvailability;
+import com.mixpanel.android.util.ConnectivityMonitor;
+import com.mixpanel.android.util.MPLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The default properties sent with every event, describing the library, the device and its
+ * connection. Looking them up takes a Play Services check and several system service calls, so
+ * they're looked up once into an immutable Snapshot and reused for every event until a broadcast
+ * says one of them may have changed: a connectivity change (carrier, wifi, radio), a Bluetooth
+ * state change, or a configuration change (screen).
+ *
+ * <p>Thread safe.
+ */
+/* package */ class DeviceContext {
+
+    /**
+     * The resolved default properties, in the order they're sent. Never changes once built.
+     */
+    public static class Snapshot {
+        private Snapshot(List<String> keys, List<Object> values, int version) {
+            mKeys = keys.toArray(new String[keys.size()]);
+            mValues = values.toArray(new Object[values.size()]);
+            mVersion = version;
+        }
+
+        /**
+         * Copies every default property into properties.
+         */
+        public void putInto(JSONObject properties) throws JSONException {
+            for (int i = 0; i < mKeys.length; i++) {
+                properties.put(mKeys[i], mValues[i]);
+            }
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            final JSONObject ret = new JSONObject();
+            putInto(ret);
+            return ret;
+        }
+
+        private final String[] mKeys;
+        private final Object[] mValues;
+        private final int mVersion;
+    }
+
+    /* package */ static DeviceContext getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new DeviceContext(appContext, SystemInformation.getInstance(appContext));
+                sInstance.watchForChanges();
+            }
+        }
+
+        return sInstance;
+    }
+
+    private DeviceContext(Context context, SystemInformation systemInformation) {
+        mContext = context;
+        mSystemInformation = systemInformation;
+    }
+
+    /**
+     * @return the current default properties, looking them up again only if they may have changed
+     */
+    public Snapshot getSnapshot() {
+        final Snapshot current = mSnapshot;
+        if (null != current && current.mVersion == mVersion.get()) {
+            return current;
+        }
+
+        final Snapshot fresh = buildSnapshot();
+        // Only kept while every change will be reported, same as the radio type in SystemInformation
+        if (mWatching && null != ConnectivityMonitor.getInstance(mContext).isOnline()) {
+            mSnapshot = fresh;
+        }
+        return fresh;
+    }
+
+    /**
+     * Forgets the current snapshot, so the next event looks every property up again.
+     */
+    public void invalidate() {
+        mVersion.incrementAndGet();
+    }
+
+    /**
+     * Looks up every default property, without touching the cached snapshot.
+     */
+    /* package */ Snapshot buildSnapshot() {
+        // Read before looking anything up, so a change reported meanwhile makes the next call look again
+        final int version = mVersion.get();
+        final List<String> keys = new ArrayList<String>(24);
+        final List<Object> values = new ArrayList<Object>(24);
+
+        add(keys, values, "mp_lib", "android");
+        add(keys, values, "$lib_version", MPConfig.VERSION);
+
+        // For querying together with data from other libraries
+        add(keys, values, "$os", "Android");
+        add(keys, values, "$os_version", Build.VERSION.RELEASE == null ? "UNKNOWN" : Build.VERSION.RELEASE);
+
+        add(keys, values, "$manufacturer", Build.MANUFACTURER == null ? "UNKNOWN" : Build.MANUFACTURER);
+        add(keys, values, "$brand", Build.BRAND == null ? "UNKNOWN" : Build.BRAND);
+        add(keys, values, "$model", Build.MODEL == null ? "UNKNOWN" : Build.MODEL);
+
+        add(keys, values, "$google_play_services", getGooglePlayServicesStatus());
+
+        final DisplayMetrics displayMetrics = mSystemInformation.getDisplayMetrics();
+        add(keys, values, "$screen_dpi", displayMetrics.densityDpi);
+        add(keys, values, "$screen_height", displayMetrics.heightPixels);
+        add(keys, values, "$screen_width", displayMetrics.widthPixels);
+
+        final String applicationVersionName = mSystemInformation.getAppVersionName();
+        if (null != applicationVersionName) {
+            add(keys, values, "$app_version", applicationVersionName);
+            add(keys, values, "$app_version_string", applicationVersionName);
+        }
+
+        final Integer applicationVersionCode = mSystemInformation.getAppVersionCode();
+        if (null != applicationVersionCode) {
+            final String applicationVersion = String.valueOf(applicationVersionCode);
+            add(keys, values, "$app_release", applicationVersion);
+            add(keys, values, "$app_build_number", applicationVersion);
+        }
+
+        final Boolean hasNFC = mSystemInformation.hasNFC();
+        if (null != hasNFC)
+            add(keys, values, "$has_nfc", hasNFC.booleanValue());
+
+        final Boolean hasTelephony = mSystemInformation.hasTelephony();
+        if (null != hasTelephony)
+            add(keys, values, "$has_telephone", hasTelephony.booleanValue());
+
+        final String carrier = mSystemInformation.getCurrentNetworkOperator();
+        if (null != carrier && !carrier.trim().isEmpty())
+            add(keys, values, "$carrier", carrier);
+
+        final Boolean isWifi = mSystemInformation.isWifiConnected();
+        if (null != isWifi)
+            add(keys, values, "$wifi", isWifi.booleanValue());
+
+        final String radio = mSystemInformation.getPhoneRadioType(mContext);
+        if (null != radio)
+            add(keys, values, "$radio", radio);
+
+        final Boolean isBluetoothEnabled = mSystemInformation.isBluetoothEnabled();
+        if (isBluetoothEnabled != null)
+            add(keys, values, "$bluetooth_enabled", isBluetoothEnabled);
+
+        final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
+        if (bluetoothVersion != null)
+            add(keys, values, "$bluetooth_version", bluetoothVersion);
+
+        return new Snapshot(keys, values, version);
+    }
+
+    private String getGooglePlayServicesStatus() {
+        try {
+            try {
+                final int servicesAvailable = GoogleApiAvailability.getInstance().isGooglePlayServicesAvailable(mContext);
+                switch (servicesAvailable) {
+                    case ConnectionResult.SUCCESS:
+                        return "available";
+                    case ConnectionResult.SERVICE_MISSING:
+                        return "missing";
+                    case ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED:
+                        return "out of date";
+                    case ConnectionResult.SERVICE_DISABLED:
+                        return "disabled";
+                    case ConnectionResult.SERVICE_INVALID:
+                        return "invalid";
+                    default:
+                        return null;
+                }
+            } catch (RuntimeException e) {
+                // Turns out even checking for the service will cause explosions
+                // unless we've set up meta-data
+                return "not configured";
+            }
+        } catch (NoClassDefFoundError e) {
+            return "not included";
+        }
+    }
+
+    private static void add(List<String> keys, List<Object> values, String key, Object value) {
+        if (null != value) {
+            keys.add(key);
+            values.add(value);
+        }
+    }
+
+    private void watchForChanges() {
+        ConnectivityMonitor.getInstance(mContext).addListener(new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor monitor, boolean reconnected) {
+                invalidate();
+            }
+        });
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        filter.addAction(Intent.ACTION_CONFIGURATION_CHANGED);
+        try {
+            mContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    if (Intent.ACTION_CONFIGURATION_CHANGED.equals(intent.getAction())) {
+                        mSystemInformation.refreshDisplayMetrics();
+                    }
+                    invalidate();
+                }
+            }, filter);
+        } catch (final RuntimeException e) {
+            // Without the broadcasts we can't tell when the snapshot is stale, so never keep it
+            MPLog.w(LOGTAG, "Could not watch for device changes, default properties will be looked up for every event.", e);
+            mWatching = false;
+            return;
+        }
+        mWatching = true;
+    }
+
+    private final Context mContext;
+    private final SystemInformation mSystemInformation;
+    private volatile Snapshot mSnapshot;
+    private final AtomicInteger mVersion = new AtomicInteger(0);
+    private volatile boolean mWatching;
+
+    private static DeviceContext sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    private static final String LOGTAG = "MixpanelAPI.DeviceContext";
+}
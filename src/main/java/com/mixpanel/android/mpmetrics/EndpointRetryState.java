@@ -0,0 +1,101 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.Random;
+
+/**
+ * Retry state for uploads from one project to one Mixpanel endpoint, so a failing endpoint
+ * doesn't hold back the others.
+ *
+ * <p>Works as a circuit breaker. The circuit starts closed, and any failure opens it for a backoff
+ * delay, during which no uploads are attempted. Once the delay has passed the circuit is half-open:
+ * a single batch is sent as a probe, and the circuit closes again if it succeeds or reopens for a
+ * longer delay if it fails.
+ *
+ * <p>Delays use "full jitter": each is chosen at random between the base delay and an exponentially
+ * growing ceiling, so devices that failed together don't all retry together. A Retry-After from
+ * the server is always honored, even if it is longer than the ceiling.
+ *
+ * <p>Not thread safe, instances should only be used by the worker thread.
+ */
+/* package */ class EndpointRetryState {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    public EndpointRetryState(Random random) {
+        mRandom = random;
+        mState = State.CLOSED;
+    }
+
+    /**
+     * @return true if an upload may be attempted at nowMillis. An open circuit whose delay has
+     * passed becomes half-open, and the caller should send a single probe batch.
+     */
+    public boolean allowRequest(long nowMillis) {
+        if (mState == State.OPEN) {
+            if (nowMillis < mRetryAtMillis) {
+                return false;
+            }
+            mState = State.HALF_OPEN;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if uploads are being held back at nowMillis. Unlike allowRequest, doesn't change the state.
+     */
+    public boolean isBackingOff(long nowMillis) {
+        return mState == State.OPEN && nowMillis < mRetryAtMillis;
+    }
+
+    /**
+     * Closes the circuit.
+     *
+     * @return the number of consecutive failures the success ended
+     */
+    public int onSuccess() {
+        final int ret = mConsecutiveFailures;
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        return ret;
+    }
+
+    /**
+     * Opens the circuit for a new backoff delay.
+     *
+     * @param retryAfterMillis the delay the server asked for, or 0 if it didn't ask
+     * @return the delay before the next attempt, in milliseconds
+     */
+    public long onFailure(long nowMillis, long retryAfterMillis) {
+        final int doublings = Math.min(mConsecutiveFailures + 1, MAX_DOUBLINGS);
+        final long ceiling = Math.min(BASE_DELAY_MILLIS << doublings, MAX_DELAY_MILLIS);
+        long delay = BASE_DELAY_MILLIS + (long) (mRandom.nextDouble() * (ceiling - BASE_DELAY_MILLIS));
+        delay = Math.max(delay, Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS));
+
+        mConsecutiveFailures++;
+        mState = State.OPEN;
+        mRetryAtMillis = nowMillis + delay;
+        return delay;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public int getConsecutiveFailures() {
+        return mConsecutiveFailures;
+    }
+
+    public long getRetryAtMillis() {
+        return mRetryAtMillis;
+    }
+
+    private final Random mRandom;
+    private State mState;
+    private int mConsecutiveFailures;
+    private long mRetryAtMillis;
+
+    private static final long BASE_DELAY_MILLIS = 60 * 1000;
+    private static final long MAX_DELAY_MILLIS = 10 * 60 * 1000;
+    private static final long MAX_RETRY_AFTER_MILLIS = 60 * 60 * 1000; // ignore anything longer, it's probably a mistake
+    private static final int MAX_DOUBLINGS = 10;
+}
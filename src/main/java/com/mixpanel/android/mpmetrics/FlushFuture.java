@@ -0,0 +1,161 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.SystemClock;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A flush with a deadline, as returned by {@link MixpanelAPI#flush(long)}. The worker thread
+ * reports each batch it sends here, and stops sending once the deadline passes or the flush is
+ * cancelled. The Future completes when the worker is done, or at the deadline, whichever is first,
+ * so get() never waits past the deadline even if the worker is busy with something else. Every
+ * table is reported as timed out until the worker finishes it, including when the worker never
+ * got to the flush at all.
+ *
+ * <p>Thread safe.
+ */
+/* package */ class FlushFuture implements Future<FlushResult> {
+
+    public FlushFuture(String token, long timeoutMillis) {
+        mToken = token;
+        mDeadlineMillis = SystemClock.elapsedRealtime() + Math.max(timeoutMillis, 0);
+        mFinished = new CountDownLatch(1);
+        mRowsSent = new EnumMap<MPDbAdapter.Table, Integer>(MPDbAdapter.Table.class);
+        mBytesSent = new EnumMap<MPDbAdapter.Table, Long>(MPDbAdapter.Table.class);
+        mStatuses = new EnumMap<MPDbAdapter.Table, FlushResult.Status>(MPDbAdapter.Table.class);
+        for (MPDbAdapter.Table table : FLUSHED_TABLES) {
+            mRowsSent.put(table, 0);
+            mBytesSent.put(table, 0L);
+        }
+    }
+
+    /**
+     * @return the project to flush, or null to flush every project with queued rows
+     */
+    public String getToken() {
+        return mToken;
+    }
+
+    /**
+     * @return the time left until the deadline, or 0 if it has passed or the flush was cancelled
+     */
+    public long getRemainingMillis() {
+        if (mCancelled) {
+            return 0;
+        }
+        return Math.max(mDeadlineMillis - SystemClock.elapsedRealtime(), 0);
+    }
+
+    /**
+     * @return true if the worker should stop sending
+     */
+    public boolean isExpired() {
+        return getRemainingMillis() <= 0;
+    }
+
+    /**
+     * Called by the worker once Mixpanel has accepted a batch from table.
+     */
+    public synchronized void onBatchSent(MPDbAdapter.Table table, int rows, long bytes) {
+        mRowsSent.put(table, mRowsSent.get(table) + rows);
+        mBytesSent.put(table, mBytesSent.get(table) + bytes);
+    }
+
+    /**
+     * Called by the worker when it stops flushing table. A flush of several projects keeps the
+     * first outcome other than success for each table.
+     */
+    public synchronized void onTableFinished(MPDbAdapter.Table table, FlushResult.Status status) {
+        final FlushResult.Status previous = mStatuses.get(table);
+        if (null == previous || previous == FlushResult.Status.SUCCESS) {
+            mStatuses.put(table, status);
+        }
+    }
+
+    /**
+     * Called by the worker when it is done with every table. Tables it didn't report on had
+     * nothing queued, so they count as sent.
+     */
+    public void finish() {
+        synchronized (this) {
+            for (MPDbAdapter.Table table : FLUSHED_TABLES) {
+                if (!mStatuses.containsKey(table)) {
+                    mStatuses.put(table, FlushResult.Status.SUCCESS);
+                }
+            }
+        }
+        mFinished.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        mCancelled = true;
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mCancelled || mFinished.getCount() == 0 || SystemClock.elapsedRealtime() >= mDeadlineMillis;
+    }
+
+    /**
+     * Waits until the worker is done or the deadline passes. Tables still being flushed at the
+     * deadline are reported as timed out, with the batches sent so far.
+     */
+    @Override
+    public FlushResult get() throws InterruptedException {
+        mFinished.await(getRemainingMillis(), TimeUnit.MILLISECONDS);
+        return getResult();
+    }
+
+    @Override
+    public FlushResult get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        final long waitMillis = Math.min(unit.toMillis(timeout), getRemainingMillis());
+        if (!mFinished.await(waitMillis, TimeUnit.MILLISECONDS) && !isDone()) {
+            throw new TimeoutException("Flush still running");
+        }
+        return getResult();
+    }
+
+    private synchronized FlushResult getResult() {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+
+        final Map<MPDbAdapter.Table, FlushResult.TableResult> results =
+                new EnumMap<MPDbAdapter.Table, FlushResult.TableResult>(MPDbAdapter.Table.class);
+        for (Map.Entry<MPDbAdapter.Table, Integer> entry : mRowsSent.entrySet()) {
+            final MPDbAdapter.Table table = entry.getKey();
+            final FlushResult.Status status = mStatuses.get(table);
+            results.put(table, new FlushResult.TableResult(null == status ? FlushResult.Status.TIMED_OUT : status,
+                    entry.getValue(), mBytesSent.get(table)));
+        }
+        return new FlushResult(results);
+    }
+
+    private final String mToken;
+    private final long mDeadlineMillis;
+    private final CountDownLatch mFinished;
+    private final Map<MPDbAdapter.Table, Integer> mRowsSent;
+    private final Map<MPDbAdapter.Table, Long> mBytesSent;
+    private final Map<MPDbAdapter.Table, FlushResult.Status> mStatuses;
+    private volatile boolean mCancelled;
+
+    private static final MPDbAdapter.Table[] FLUSHED_TABLES = {
+            MPDbAdapter.Table.EVENTS, MPDbAdapter.Table.PEOPLE, MPDbAdapter.Table.GROUPS
+    };
+}
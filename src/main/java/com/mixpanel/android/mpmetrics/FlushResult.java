@@ -0,0 +1,98 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What a call to {@link MixpanelAPI#flush(long)} sent, for each queue it flushed.
+ */
+public class FlushResult {
+
+    public enum Status {
+        /** Every queued row was sent. */
+        SUCCESS,
+        /** Nothing was sent because the device is offline, or Mixpanel is blocked. */
+        OFFLINE,
+        /** Nothing was sent because earlier uploads to the endpoint failed, and it is waiting to retry. */
+        BACKING_OFF,
+        /** An upload failed. Rows that weren't sent stay queued for a later flush. */
+        FAILED,
+        /** The deadline passed before every row was sent. Rows that weren't sent stay queued. */
+        TIMED_OUT
+    }
+
+    /**
+     * The outcome of flushing a single queue.
+     */
+    public static class TableResult {
+        /* package */ TableResult(Status status, int rowsSent, long bytesSent) {
+            mStatus = status;
+            mRowsSent = rowsSent;
+            mBytesSent = bytesSent;
+        }
+
+        public Status getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return the number of queued rows Mixpanel accepted
+         */
+        public int getRowsSent() {
+            return mRowsSent;
+        }
+
+        /**
+         * @return the size of the row data Mixpanel accepted, before encoding
+         */
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        @Override
+        public String toString() {
+            return mStatus + " (" + mRowsSent + " rows, " + mBytesSent + " bytes)";
+        }
+
+        private final Status mStatus;
+        private final int mRowsSent;
+        private final long mBytesSent;
+    }
+
+    /* package */ FlushResult(Map<MPDbAdapter.Table, TableResult> tableResults) {
+        final Map<MPDbAdapter.Table, TableResult> copy = new EnumMap<MPDbAdapter.Table, TableResult>(MPDbAdapter.Table.class);
+        copy.putAll(tableResults);
+        mTableResults = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return the outcome for table, or null for a table flush(long) doesn't send
+     */
+    public TableResult getTableResult(MPDbAdapter.Table table) {
+        return mTableResults.get(table);
+    }
+
+    public Map<MPDbAdapter.Table, TableResult> getTableResults() {
+        return mTableResults;
+    }
+
+    /**
+     * @return true if every queue was sent completely
+     */
+    public boolean isSuccessful() {
+        for (TableResult result : mTableResults.values()) {
+            if (result.getStatus() != Status.SUCCESS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "FlushResult" + mTableResults;
+    }
+
+    private final Map<MPDbAdapter.Table, TableResult> mTableResults;
+}
@@ -0,0 +1,122 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+import com.mixpanel.android.util.ConnectivityMonitor;
+import com.mixpanel.android.util.MPLog;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a scheduled flush is cheap to send right now. On a cellular connection a flush
+ * that wakes the radio keeps it in its high power state for several seconds after the request,
+ * so scheduled flushes are better held back until the radio is active anyway, or the device is
+ * on wifi or charging.
+ *
+ * <p>The scheduler reports when a held back flush becomes cheap through its Listener. It counts
+ * the held back flushes sent that way, since each of them is a radio wake up avoided.
+ */
+/* package */ class FlushScheduler {
+
+    /**
+     * Called on a system thread when held back flushes may have become cheap to send.
+     */
+    public interface Listener {
+        void onFlushOpportunity();
+    }
+
+    public FlushScheduler(Context context, ConnectivityMonitor monitor, Listener listener) {
+        mContext = context;
+        mMonitor = monitor;
+        mListener = listener;
+        mAvoidedWakeups = new AtomicLong(0);
+        mConnectivityListener = new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor monitor, boolean reconnected) {
+                mListener.onFlushOpportunity();
+            }
+        };
+        mNetworkActiveListener = new ConnectivityMonitor.NetworkActiveListener() {
+            @Override
+            public void onNetworkActive(ConnectivityMonitor monitor) {
+                mListener.onFlushOpportunity();
+            }
+        };
+        mPowerReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mCharging = Intent.ACTION_POWER_CONNECTED.equals(intent.getAction());
+                if (mCharging) {
+                    mListener.onFlushOpportunity();
+                }
+            }
+        };
+    }
+
+    public void start() {
+        final IntentFilter powerFilter = new IntentFilter();
+        powerFilter.addAction(Intent.ACTION_POWER_CONNECTED);
+        powerFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        try {
+            mContext.registerReceiver(mPowerReceiver, powerFilter);
+            // The sticky battery broadcast tells us whether we're plugged in right now
+            final Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            mCharging = null != battery && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        } catch (final RuntimeException e) {
+            MPLog.w(LOGTAG, "Could not watch for charging state, flushes will only wait for the radio.", e);
+        }
+        mMonitor.addListener(mConnectivityListener);
+        mMonitor.addNetworkActiveListener(mNetworkActiveListener);
+    }
+
+    public void stop() {
+        mMonitor.removeListener(mConnectivityListener);
+        mMonitor.removeNetworkActiveListener(mNetworkActiveListener);
+        try {
+            mContext.unregisterReceiver(mPowerReceiver);
+        } catch (final IllegalArgumentException e) {
+            // Never registered
+        }
+    }
+
+    /**
+     * @return true if a flush sent now won't wake the radio, or if that can't be told
+     */
+    public boolean isFlushCheap() {
+        final Boolean isWifi = mMonitor.isWifiConnected();
+        if (null == isWifi || isWifi || mCharging) {
+            return true;
+        }
+        final Boolean isActive = mMonitor.isDefaultNetworkActive();
+        return null == isActive || isActive;
+    }
+
+    /**
+     * Records that a held back flush was sent before its deadline, because it became cheap.
+     */
+    public void onWakeupAvoided() {
+        mAvoidedWakeups.incrementAndGet();
+    }
+
+    /**
+     * @return the number of held back flushes that were sent without waking the radio. Thread safe.
+     */
+    public long getAvoidedWakeups() {
+        return mAvoidedWakeups.get();
+    }
+
+    private final Context mContext;
+    private final ConnectivityMonitor mMonitor;
+    private final Listener mListener;
+    private final AtomicLong mAvoidedWakeups;
+    private final ConnectivityMonitor.Listener mConnectivityListener;
+    private final ConnectivityMonitor.NetworkActiveListener mNetworkActiveListener;
+    private final BroadcastReceiver mPowerReceiver;
+    private volatile boolean mCharging;
+
+    private static final String LOGTAG = "MixpanelAPI.FlushScheduler";
+}
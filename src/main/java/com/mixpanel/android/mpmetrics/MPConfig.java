@@ -120,6 +120,57 @@ import javax.net.ssl.SSLSocketFactory;
  *
  *     <dt>com.mixpanel.android.MPConfig.NotificationChannelImportance</dt>
  *     <dd>An integer number. Importance of the notification channel (see https://developer.android.com/reference/android/app/NotificationManager.html). Defaults to 3 (IMPORTANCE_DEFAULT). Applicable only for Android 26 and above.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EventQueueCapacity</dt>
+ *     <dd>An integer count of events. The size of the lock-free buffer that hands tracked events to the Mixpanel worker thread. Events that don't fit are still delivered, just more slowly. Set to 0 to disable the buffer. Defaults to 1024.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.GroupCommitMaxEvents</dt>
+ *     <dd>An integer count of events. The most buffered events the Mixpanel worker will write to the database in a single transaction. Defaults to 100.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.GroupCommitWindow</dt>
+ *     <dd>An integer number of milliseconds. The longest the Mixpanel worker will keep a single database transaction open while writing buffered events. Defaults to 50.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.KeepDatabaseOpen</dt>
+ *     <dd>A boolean. If true, the Mixpanel database connection is opened once, in write-ahead logging mode, and kept open until the queue is deleted rather than reopened for every read or write. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxBatchBytes</dt>
+ *     <dd>An integer number of bytes. The most queued data the library will send to Mixpanel in a single request on wifi. Requests over other networks, and after slow or failed requests, use a smaller budget. Defaults to 1048576 (1MB).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxBatchRows</dt>
+ *     <dd>An integer count of records. The most events, people updates or group updates the library will send to Mixpanel in a single request. Defaults to 50.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.GzipRequests</dt>
+ *     <dd>A boolean. If true, queued data is sent to Mixpanel as a gzip-compressed JSON request body rather than as a base64 encoded form field, which is usually several times smaller. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.StreamRequestBodies</dt>
+ *     <dd>A boolean. If true, queued data is read from the database and encoded while it is being sent to Mixpanel, in chunked streaming mode, rather than being assembled in memory first. This keeps memory use low when batches are large. Combine with GzipRequests to stream compressed JSON. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxConnections</dt>
+ *     <dd>An integer count of connections. The most requests the library will have open to Mixpanel at once, and so the most idle connections it keeps alive for reuse. Set to 0 to open a new connection for every request instead. Defaults to 4.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.ConnectionIdleTimeout</dt>
+ *     <dd>An integer number of milliseconds. How long an idle connection to Mixpanel is trusted to still be open. After a longer idle period, requests that fail on a closed connection are retried on another. Defaults to 30000 (30 seconds).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.FlushWindow</dt>
+ *     <dd>An integer count of batches. How many batches of queued events the library may be uploading to Mixpanel at once while it reads and encodes the next ones. Batches are still removed from the queue in order. People and group updates are always sent one batch at a time, so they are applied in order. Uploads beyond MaxConnections wait for a free connection. Defaults to 1, which sends one batch at a time.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.RadioAwareFlush</dt>
+ *     <dd>A boolean that, when true, holds back scheduled flushes on a cellular connection until the radio is already active, the device is on wifi or charging, or MaxFlushDeferral has passed. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxFlushDeferral</dt>
+ *     <dd>The most time in milliseconds a scheduled flush may be held back when RadioAwareFlush is true. Defaults to 900000 (15 minutes).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.BackgroundFlushJob</dt>
+ *     <dd>A boolean that, when true, schedules a JobScheduler job when the app goes to the background, which sends queued data once the device has a network connection, even if the app isn't running by then. Requires API 21. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.FlushJobId</dt>
+ *     <dd>The JobScheduler job ID used when BackgroundFlushJob is true. Change it if it clashes with a job of your own. Defaults to 1296105473.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.FlushJobTimeSlice</dt>
+ *     <dd>The most time in milliseconds a single run of the background flush job may spend sending. Whatever is left is sent on a later run. Defaults to 60000 (one minute).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.PreferencesWriteInterval</dt>
+ *     <dd>The longest time, in milliseconds, that changes to super properties, distinct ids and timed events are held in memory before being written to SharedPreferences. Changes made meanwhile are written together. Pending changes are also written when the app goes to the background or crashes. Defaults to 0, which writes every change immediately.</dd>
  * </dl>
  *
  */
@@ -251,6 +302,23 @@ public class MPConfig {
         mUseIpAddressForGeolocation = metaData.getBoolean("com.mixpanel.android.MPConfig.UseIpAddressForGeolocation", true);
         mTestMode = metaData.getBoolean("com.mixpanel.android.MPConfig.TestMode", false);
         mNotificationChannelImportance = metaData.getInt("com.mixpanel.android.MPConfig.NotificationChannelImportance", 3); // NotificationManger.IMPORTANCE_DEFAULT
+        mEventQueueCapacity = metaData.getInt("com.mixpanel.android.MPConfig.EventQueueCapacity", 1024);
+        mGroupCommitMaxEvents = metaData.getInt("com.mixpanel.android.MPConfig.GroupCommitMaxEvents", 100);
+        mGroupCommitWindow = metaData.getInt("com.mixpanel.android.MPConfig.GroupCommitWindow", 50);
+        mKeepDatabaseOpen = metaData.getBoolean("com.mixpanel.android.MPConfig.KeepDatabaseOpen", false);
+        mMaxBatchBytes = metaData.getInt("com.mixpanel.android.MPConfig.MaxBatchBytes", 1048576);
+        mMaxBatchRows = metaData.getInt("com.mixpanel.android.MPConfig.MaxBatchRows", 50);
+        mGzipRequests = metaData.getBoolean("com.mixpanel.android.MPConfig.GzipRequests", false);
+        mStreamRequestBodies = metaData.getBoolean("com.mixpanel.android.MPConfig.StreamRequestBodies", false);
+        mMaxConnections = metaData.getInt("com.mixpanel.android.MPConfig.MaxConnections", 4);
+        mConnectionIdleTimeout = metaData.getInt("com.mixpanel.android.MPConfig.ConnectionIdleTimeout", 30000);
+        mFlushWindow = metaData.getInt("com.mixpanel.android.MPConfig.FlushWindow", 1);
+        mRadioAwareFlush = metaData.getBoolean("com.mixpanel.android.MPConfig.RadioAwareFlush", false);
+        mMaxFlushDeferral = metaData.getInt("com.mixpanel.android.MPConfig.MaxFlushDeferral", 900000);
+        mBackgroundFlushJob = metaData.getBoolean("com.mixpanel.android.MPConfig.BackgroundFlushJob", false);
+        mFlushJobId = metaData.getInt("com.mixpanel.android.MPConfig.FlushJobId", 1296105473);
+        mFlushJobTimeSlice = metaData.getInt("com.mixpanel.android.MPConfig.FlushJobTimeSlice", 60000);
+        mPreferencesWriteInterval = metaData.getInt("com.mixpanel.android.MPConfig.PreferencesWriteInterval", 0);
 
         Object dataExpirationMetaData = metaData.get("com.mixpanel.android.MPConfig.DataExpiration");
         long dataExpirationLong = 1000 * 60 * 60 * 24 * 5; // 5 days default
@@ -347,6 +415,91 @@ public class MPConfig {
 
     public int getMinimumDatabaseLimit() { return mMinimumDatabaseLimit; }
 
+    // Number of tracked events that can wait for the worker thread without taking a lock. 0 disables the buffer.
+    public int getEventQueueCapacity() {
+        return mEventQueueCapacity;
+    }
+
+    // Most buffered events written to the database in a single transaction
+    public int getGroupCommitMaxEvents() {
+        return mGroupCommitMaxEvents;
+    }
+
+    // Longest time in milliseconds a single group commit transaction stays open
+    public int getGroupCommitWindow() {
+        return mGroupCommitWindow;
+    }
+
+    // If true, the Mixpanel worker keeps a single write-ahead logging database connection open
+    public boolean getKeepDatabaseOpen() {
+        return mKeepDatabaseOpen;
+    }
+
+    // Most bytes of queued data sent in a single request
+    public int getMaxBatchBytes() {
+        return mMaxBatchBytes;
+    }
+
+    // Most queued records sent in a single request
+    public int getMaxBatchRows() {
+        return mMaxBatchRows;
+    }
+
+    // If true, queued data is sent as a gzip-compressed JSON body
+    public boolean getGzipRequests() {
+        return mGzipRequests;
+    }
+
+    // If true, batches are read from the database as they are written to the connection
+    public boolean getStreamRequestBodies() {
+        return mStreamRequestBodies;
+    }
+
+    // Most connections kept open to Mixpanel, or 0 to not keep connections alive
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    // How long an idle kept-alive connection is trusted to still be open
+    public int getConnectionIdleTimeout() {
+        return mConnectionIdleTimeout;
+    }
+
+    // Most batches of events uploading at once during a flush
+    public int getFlushWindow() {
+        return mFlushWindow;
+    }
+
+    // Whether scheduled flushes wait for the radio to be active anyway
+    public boolean getRadioAwareFlush() {
+        return mRadioAwareFlush;
+    }
+
+    // Longest a radio aware flush may be held back, in milliseconds
+    public int getMaxFlushDeferral() {
+        return mMaxFlushDeferral;
+    }
+
+    // Whether to finish flushing from a JobScheduler job after the app goes to the background
+    public boolean getBackgroundFlushJob() {
+        return mBackgroundFlushJob;
+    }
+
+    // Job ID of the background flush job
+    public int getFlushJobId() {
+        return mFlushJobId;
+    }
+
+    // Longest a single run of the background flush job may take, in milliseconds
+    public int getFlushJobTimeSlice() {
+        return mFlushJobTimeSlice;
+    }
+
+    // Longest time changes to persistent properties are held before being written, in milliseconds
+    public int getPreferencesWriteInterval() {
+        return mPreferencesWriteInterval;
+    }
+
     public boolean getDisableGestureBindingUI() {
         return mDisableGestureBindingUI;
     }
@@ -575,6 +728,23 @@ public class MPConfig {
                 "    NotificationChannelName: " + getNotificationChannelName() + "\n" +
                 "    NotificationChannelImportance: " + getNotificationChannelImportance() + "\n" +
                 "    FlushOnBackground: " + getFlushOnBackground() + "\n" +
+                "    EventQueueCapacity: " + getEventQueueCapacity() + "\n" +
+                "    GroupCommitMaxEvents: " + getGroupCommitMaxEvents() + "\n" +
+                "    GroupCommitWindow: " + getGroupCommitWindow() + "\n" +
+                "    KeepDatabaseOpen: " + getKeepDatabaseOpen() + "\n" +
+                "    MaxBatchBytes: " + getMaxBatchBytes() + "\n" +
+                "    MaxBatchRows: " + getMaxBatchRows() + "\n" +
+                "    GzipRequests: " + getGzipRequests() + "\n" +
+                "    StreamRequestBodies: " + getStreamRequestBodies() + "\n" +
+                "    MaxConnections: " + getMaxConnections() + "\n" +
+                "    ConnectionIdleTimeout: " + getConnectionIdleTimeout() + "\n" +
+                "    FlushWindow: " + getFlushWindow() + "\n" +
+                "    RadioAwareFlush: " + getRadioAwareFlush() + "\n" +
+                "    MaxFlushDeferral: " + getMaxFlushDeferral() + "\n" +
+                "    BackgroundFlushJob: " + getBackgroundFlushJob() + "\n" +
+                "    FlushJobId: " + getFlushJobId() + "\n" +
+                "    FlushJobTimeSlice: " + getFlushJobTimeSlice() + "\n" +
+                "    PreferencesWriteInterval: " + getPreferencesWriteInterval() + "\n" +
                 "    UseIpAddressForGeolocation: " + getUseIpAddressForGeolocation();
     }
 
@@ -583,6 +753,23 @@ public class MPConfig {
     private final boolean mFlushOnBackground;
     private final long mDataExpiration;
     private final int mMinimumDatabaseLimit;
+    private final int mEventQueueCapacity;
+    private final int mGroupCommitMaxEvents;
+    private final int mGroupCommitWindow;
+    private final boolean mKeepDatabaseOpen;
+    private final int mMaxBatchBytes;
+    private final int mMaxBatchRows;
+    private final boolean mGzipRequests;
+    private final boolean mStreamRequestBodies;
+    private final int mMaxConnections;
+    private final int mConnectionIdleTimeout;
+    private final int mFlushWindow;
+    private final boolean mRadioAwareFlush;
+    private final int mMaxFlushDeferral;
+    private final boolean mBackgroundFlushJob;
+    private final int mFlushJobId;
+    private final int mFlushJobTimeSlice;
+    private final int mPreferencesWriteInterval;
     private final boolean mTestMode;
     private final boolean mDisableGestureBindingUI;
     private final boolean mDisableEmulatorBindingUI;
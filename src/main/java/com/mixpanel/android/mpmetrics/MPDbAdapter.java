@@ -2,7 +2,12 @@ package com.mixpanel.android.mpmetrics;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
@@ -16,6 +21,8 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseArray;
 
 import com.mixpanel.android.util.MPLog;
 
@@ -51,12 +58,30 @@ import com.mixpanel.android.util.MPLog;
     public static final String KEY_CREATED_AT = "created_at";
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
+    public static final String KEY_DATA_SIZE = "data_size";
+
+    public static final String KEY_SOURCE_TABLE = "source_table";
+    public static final String KEY_RESPONSE_CODE = "response_code";
 
     public static final int ID_COLUMN_INDEX = 0;
     public static final int DATA_COLUMN_INDEX = 1;
     public static final int CREATED_AT_COLUMN_INDEX = 2;
     public static final int AUTOMATIC_DATA_COLUMN_INDEX = 3;
     public static final int TOKEN_COLUMN_INDEX = 4;
+    public static final int DATA_SIZE_COLUMN_INDEX = 5;
+
+    // Statements cached by getStatement()
+    private static final int INSERT_ROW = 0;
+    private static final int UPDATE_ROW_DATA = 1;
+    private static final int DELETE_ROW = 2;
+    private static final int DELETE_SENT_ROWS = 3;
+    private static final int DELETE_EXPIRED_ROWS = 4;
+    private static final int DELETE_TOKEN_ROWS = 5;
+    private static final int DELETE_AUTOMATIC_ROWS = 6;
+    private static final int TABLE_COUNT = Table.values().length;
+
+    private static final int MANUAL_ROWS = 0;
+    private static final int AUTOMATIC_ROWS = 1;
 
     public static final int DB_UPDATE_ERROR = -1;
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
@@ -66,8 +91,15 @@ import com.mixpanel.android.util.MPLog;
     private static final int MIN_DB_VERSION = 4;
 
     // If you increment DATABASE_VERSION, don't forget to define migration
-    private static final int DATABASE_VERSION = 7; // current database version
-    private static final int MAX_DB_VERSION = 7; // Max database version onUpdate can migrate to.
+    private static final int DATABASE_VERSION = 10; // current database version
+    private static final int MAX_DB_VERSION = 10; // Max database version onUpdate can migrate to.
+
+    private static final int BATCH_SIZE = 50; // default maximum rows sent to Mixpanel in a single request
+    private static final int INITIAL_BATCH_BUFFER_CHARS = 16 * 1024;
+    private static final int MAX_RETAINED_BATCH_BUFFER_CHARS = 256 * 1024;
+    private static final int PERSISTENT_CACHE_SIZE_KB = 1024; // page cache for connections that are kept open
+    private static final int MAX_DEAD_LETTERS = 1000; // oldest rejected rows are dropped beyond this
+    private static final String DEAD_LETTERS_TABLE = "dead_letters";
 
 
     private static final String CREATE_EVENTS_TABLE =
@@ -75,25 +107,37 @@ import com.mixpanel.android.util.MPLog;
         KEY_DATA + " STRING NOT NULL, " +
         KEY_CREATED_AT + " INTEGER NOT NULL, " +
         KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-        KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+        KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+        KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_PEOPLE_TABLE =
        "CREATE TABLE " + Table.PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
         KEY_CREATED_AT + " INTEGER NOT NULL, " +
         KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-        KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+        KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+        KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_GROUPS_TABLE =
             "CREATE TABLE " + Table.GROUPS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     KEY_DATA + " STRING NOT NULL, " +
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_ANONYMOUS_PEOPLE_TABLE =
             "CREATE TABLE " + Table.ANONYMOUS_PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     KEY_DATA + " STRING NOT NULL, " +
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0)";
+    // Rows Mixpanel rejected, kept out of the queues so they can't hold them up
+    private static final String CREATE_DEAD_LETTERS_TABLE =
+            "CREATE TABLE " + DEAD_LETTERS_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    KEY_SOURCE_TABLE + " STRING NOT NULL, " +
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_DATA + " STRING NOT NULL, " +
+                    KEY_CREATED_AT + " INTEGER NOT NULL, " +
+                    KEY_RESPONSE_CODE + " INTEGER NOT NULL)";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
@@ -106,15 +150,36 @@ import com.mixpanel.android.util.MPLog;
     private static final String ANONYMOUS_PEOPLE_TIME_INDEX =
             "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.ANONYMOUS_PEOPLE.getName() +
                     " (" + KEY_CREATED_AT + ");";
+    private static final String EVENTS_TOKEN_INDEX =
+        "CREATE INDEX IF NOT EXISTS events_token_idx ON " + Table.EVENTS.getName() +
+        " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", _id);";
+    private static final String PEOPLE_TOKEN_INDEX =
+        "CREATE INDEX IF NOT EXISTS people_token_idx ON " + Table.PEOPLE.getName() +
+        " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", _id);";
+    private static final String GROUPS_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS groups_token_idx ON " + Table.GROUPS.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", _id);";
+    private static final String ANONYMOUS_PEOPLE_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS anonymous_people_token_idx ON " + Table.ANONYMOUS_PEOPLE.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", _id);";
 
     private final MPDatabaseHelper mDb;
+    private boolean mInGroupCommit;
+    // Rows per token in each table, split into MANUAL_ROWS and AUTOMATIC_ROWS.
+    // A table missing from this map hasn't been counted since the database was opened.
+    private final Map<Table, Map<String, int[]>> mRowCounts = new EnumMap<Table, Map<String, int[]>>(Table.class);
+    // Compiled statements for mStatementsDb, keyed by statement and table
+    private final SparseArray<SQLiteStatement> mStatements = new SparseArray<SQLiteStatement>();
+    private SQLiteDatabase mStatementsDb;
+    private StringBuilder mBatchBuffer; // reused by generateDataString
 
     private static class MPDatabaseHelper extends SQLiteOpenHelper {
-        MPDatabaseHelper(Context context, String dbName) {
+        MPDatabaseHelper(Context context, String dbName, boolean keepOpen) {
             super(context, dbName, null, DATABASE_VERSION);
             mDatabaseFile = context.getDatabasePath(dbName);
             mConfig = MPConfig.getInstance(context);
             mContext = context;
+            mKeepOpen = keepOpen;
         }
 
         /**
@@ -123,6 +188,25 @@ import com.mixpanel.android.util.MPLog;
         public void deleteDatabase() {
             close();
             mDatabaseFile.delete();
+            new File(mDatabaseFile.getPath() + "-wal").delete();
+            new File(mDatabaseFile.getPath() + "-shm").delete();
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            // A connection we keep around can afford the extra setup
+            if (mKeepOpen && !db.isReadOnly()) {
+                try {
+                    db.enableWriteAheadLogging();
+                    db.execSQL("PRAGMA synchronous = NORMAL");
+                    db.execSQL("PRAGMA cache_size = -" + PERSISTENT_CACHE_SIZE_KB);
+                } catch (final SQLiteException e) {
+                    // Defaults are slower, but still correct.
+                    MPLog.w(LOGTAG, "Could not tune Mixpanel database connection", e);
+                }
+            }
         }
 
         @Override
@@ -133,10 +217,15 @@ import com.mixpanel.android.util.MPLog;
             db.execSQL(CREATE_PEOPLE_TABLE);
             db.execSQL(CREATE_GROUPS_TABLE);
             db.execSQL(CREATE_ANONYMOUS_PEOPLE_TABLE);
+            db.execSQL(CREATE_DEAD_LETTERS_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
             db.execSQL(PEOPLE_TIME_INDEX);
             db.execSQL(GROUPS_TIME_INDEX);
             db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
+            db.execSQL(GROUPS_TOKEN_INDEX);
+            db.execSQL(ANONYMOUS_PEOPLE_TOKEN_INDEX);
         }
 
         @Override
@@ -148,29 +237,59 @@ import com.mixpanel.android.util.MPLog;
                     migrateTableFrom4To5(db);
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
                 }
 
                 if (oldVersion == 5) {
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
                 }
 
                 if (oldVersion == 6) {
                     migrateTableFrom6To7(db);
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                }
+
+                if (oldVersion == 7) {
+                    migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                }
+
+                if (oldVersion == 8) {
+                    migrateTableFrom8To9(db);
+                    migrateTableFrom9To10(db);
+                }
+
+                if (oldVersion == 9) {
+                    migrateTableFrom9To10(db);
                 }
             } else {
                 db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.PEOPLE.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.GROUPS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.ANONYMOUS_PEOPLE.getName());
+                db.execSQL("DROP TABLE IF EXISTS " + DEAD_LETTERS_TABLE);
                 db.execSQL(CREATE_EVENTS_TABLE);
                 db.execSQL(CREATE_PEOPLE_TABLE);
                 db.execSQL(CREATE_GROUPS_TABLE);
                 db.execSQL(CREATE_ANONYMOUS_PEOPLE_TABLE);
+                db.execSQL(CREATE_DEAD_LETTERS_TABLE);
                 db.execSQL(EVENTS_TIME_INDEX);
                 db.execSQL(PEOPLE_TIME_INDEX);
                 db.execSQL(GROUPS_TIME_INDEX);
                 db.execSQL(ANONYMOUS_PEOPLE_TIME_INDEX);
+                db.execSQL(EVENTS_TOKEN_INDEX);
+                db.execSQL(PEOPLE_TOKEN_INDEX);
+                db.execSQL(GROUPS_TOKEN_INDEX);
+                db.execSQL(ANONYMOUS_PEOPLE_TOKEN_INDEX);
             }
         }
 
@@ -277,9 +396,40 @@ import com.mixpanel.android.util.MPLog;
             }
         }
 
+        private void migrateTableFrom7To8(SQLiteDatabase db) {
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
+            db.execSQL(GROUPS_TOKEN_INDEX);
+            db.execSQL(ANONYMOUS_PEOPLE_TOKEN_INDEX);
+        }
+
+        private void migrateTableFrom8To9(SQLiteDatabase db) {
+            for (final Table table : Table.values()) {
+                // Tables created by earlier migrations in this upgrade already have the column
+                final Cursor columns = db.rawQuery("SELECT * FROM " + table.getName() + " LIMIT 0", null);
+                final boolean hasDataSize;
+                try {
+                    hasDataSize = columns.getColumnIndex(KEY_DATA_SIZE) >= 0;
+                } finally {
+                    columns.close();
+                }
+
+                if (!hasDataSize) {
+                    db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_DATA_SIZE + " INTEGER NOT NULL DEFAULT 0");
+                }
+                // Close enough for rows already in the queue, which are almost always ASCII
+                db.execSQL("UPDATE " + table.getName() + " SET " + KEY_DATA_SIZE + " = length(" + KEY_DATA + ")");
+            }
+        }
+
+        private void migrateTableFrom9To10(SQLiteDatabase db) {
+            db.execSQL(CREATE_DEAD_LETTERS_TABLE);
+        }
+
         private final File mDatabaseFile;
         private final MPConfig mConfig;
         private final Context mContext;
+        private final boolean mKeepOpen;
     }
 
     public MPDbAdapter(Context context) {
@@ -287,7 +437,15 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public MPDbAdapter(Context context, String dbName) {
-        mDb = new MPDatabaseHelper(context, dbName);
+        this(context, dbName, MPConfig.getInstance(context).getKeepDatabaseOpen());
+    }
+
+    /**
+     * @param keepOpen if true, the database connection is opened once in write-ahead logging mode
+     *     and kept until deleteDB() is called. Only the thread that uses this adapter may touch it.
+     */
+    public MPDbAdapter(Context context, String dbName, boolean keepOpen) {
+        mDb = new MPDatabaseHelper(context, dbName, keepOpen);
     }
 
     public static MPDbAdapter getInstance(Context context) {
@@ -321,24 +479,24 @@ import com.mixpanel.android.util.MPLog;
             return DB_OUT_OF_MEMORY_ERROR;
         }
 
-        final String tableName = table.getName();
-
-        Cursor c = null;
         int count = DB_UPDATE_ERROR;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
+            final Map<String, int[]> rowCounts = getRowCounts(db, table);
+
+            final String data = j.toString();
+            final SQLiteStatement insert = getStatement(db, INSERT_ROW, table);
+            insert.bindString(1, data);
+            insert.bindLong(2, System.currentTimeMillis());
+            insert.bindLong(3, isAutomaticRecord ? 1 : 0);
+            bindStringOrNull(insert, 4, token);
+            insert.bindLong(5, getUtf8Length(data));
+            if (insert.executeInsert() != -1) {
+                getTokenRowCounts(rowCounts, token)[isAutomaticRecord ? AUTOMATIC_ROWS : MANUAL_ROWS]++;
+            }
 
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
-            cv.put(KEY_TOKEN, token);
-            db.insert(tableName, null, cv);
-
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName + " WHERE token='" + token + "'", null);
-            c.moveToFirst();
-            count = c.getInt(0);
+            count = getQueueCount(db, table, token, true);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not add Mixpanel data to table");
 
@@ -346,22 +504,73 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-            mDb.deleteDatabase();
+            abandonGroupCommit();
+            deleteDB();
         } catch (final OutOfMemoryError e) {
             MPLog.e(LOGTAG, "Out of memory when adding Mixpanel data to table");
         } finally {
-            if (c != null) {
-                c.close();
-            }
-            mDb.close();
+            releaseDatabase();
         }
         return count;
     }
 
+    /**
+     * Opens a transaction that subsequent calls to addJSON will write into, so a burst
+     * of records costs a single commit instead of one per record. Every call must be
+     * paired with a call to endGroupCommit().
+     */
+    public void beginGroupCommit() {
+        if (mInGroupCommit) {
+            return;
+        }
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.beginTransaction();
+            mInGroupCommit = true;
+        } catch (final SQLiteException e) {
+            // addJSON will fall back to committing each record on its own
+            MPLog.e(LOGTAG, "Could not begin group commit", e);
+            closeStatements();
+            mDb.close();
+        }
+    }
+
+    /**
+     * Commits everything added since beginGroupCommit(). Safe to call if the group was never
+     * started, or was abandoned because of an error.
+     */
+    public void endGroupCommit() {
+        if (!mInGroupCommit) {
+            return;
+        }
+
+        mInGroupCommit = false;
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.setTransactionSuccessful();
+            db.endTransaction();
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not commit Mixpanel data to the database. Re-initializing database.", e);
+            deleteDB();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    private void abandonGroupCommit() {
+        if (!mInGroupCommit) {
+            return;
+        }
+
+        mInGroupCommit = false;
+        try {
+            mDb.getWritableDatabase().endTransaction();
+        } catch (final RuntimeException e) {
+            // The database is about to be deleted anyway.
+        }
+    }
+
     /**
      * Copies anonymous people updates to people db after a user has been identified
      * @param token project token
@@ -376,31 +585,37 @@ import com.mixpanel.android.util.MPLog;
         }
         Cursor selectCursor = null;
         int count = DB_UPDATE_ERROR;
+        final int[] movedRows = new int[2];
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.ANONYMOUS_PEOPLE.getName() + " WHERE " + KEY_TOKEN + " = '" + token + "'");
-
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
+            getRowCounts(db, Table.ANONYMOUS_PEOPLE);
+            getRowCounts(db, Table.PEOPLE);
+            selectCursor = db.rawQuery("SELECT * FROM " + Table.ANONYMOUS_PEOPLE.getName() + " WHERE " + KEY_TOKEN + " = ?", new String[] { token });
+            final SQLiteStatement insert = getStatement(db, INSERT_ROW, Table.PEOPLE);
+            final SQLiteStatement delete = getStatement(db, DELETE_ROW, Table.ANONYMOUS_PEOPLE);
             db.beginTransaction();
             try {
                 while (selectCursor.moveToNext()) {
                     try {
-                        ContentValues values = new ContentValues();
-                        final int createdAtColumnIndex = selectCursor.getColumnIndex(KEY_CREATED_AT) >= 0 ? selectCursor.getColumnIndex(KEY_CREATED_AT) : CREATED_AT_COLUMN_INDEX;
-                        values.put(KEY_CREATED_AT, selectCursor.getLong(createdAtColumnIndex));
-                        final int automaticDataColumnIndex = selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA) : AUTOMATIC_DATA_COLUMN_INDEX;
-                        values.put(KEY_AUTOMATIC_DATA, selectCursor.getInt(automaticDataColumnIndex));
-                        final int tokenColumnIndex = selectCursor.getColumnIndex(KEY_TOKEN) >= 0 ? selectCursor.getColumnIndex(KEY_TOKEN) : TOKEN_COLUMN_INDEX;
-                        values.put(KEY_TOKEN, selectCursor.getString(tokenColumnIndex));
                         final int dataColumnIndex = selectCursor.getColumnIndex(KEY_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
                         JSONObject updatedData = new JSONObject(selectCursor.getString(dataColumnIndex));
                         updatedData.put("$distinct_id", distinctId);
-                        values.put(KEY_DATA, updatedData.toString());
-                        db.insert(Table.PEOPLE.getName(), null, values);
+                        final String data = updatedData.toString();
+                        insert.bindString(1, data);
+                        insert.bindLong(5, getUtf8Length(data));
+                        final int createdAtColumnIndex = selectCursor.getColumnIndex(KEY_CREATED_AT) >= 0 ? selectCursor.getColumnIndex(KEY_CREATED_AT) : CREATED_AT_COLUMN_INDEX;
+                        insert.bindLong(2, selectCursor.getLong(createdAtColumnIndex));
+                        final int automaticDataColumnIndex = selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA) : AUTOMATIC_DATA_COLUMN_INDEX;
+                        final int automaticData = selectCursor.getInt(automaticDataColumnIndex);
+                        insert.bindLong(3, automaticData);
+                        final int tokenColumnIndex = selectCursor.getColumnIndex(KEY_TOKEN) >= 0 ? selectCursor.getColumnIndex(KEY_TOKEN) : TOKEN_COLUMN_INDEX;
+                        bindStringOrNull(insert, 4, selectCursor.getString(tokenColumnIndex));
+                        insert.executeInsert();
                         final int idColumnIndex = selectCursor.getColumnIndex("_id") >= 0 ? selectCursor.getColumnIndex("_id") : ID_COLUMN_INDEX;
-                        int rowId = selectCursor.getInt(idColumnIndex);
-                        db.delete(Table.ANONYMOUS_PEOPLE.getName(), "_id = " + rowId, null);
+                        delete.bindLong(1, selectCursor.getLong(idColumnIndex));
+                        delete.executeUpdateDelete();
+                        movedRows[automaticData != 0 ? AUTOMATIC_ROWS : MANUAL_ROWS]++;
                         count++;
                     } catch (final JSONException e) {
                         // Ignore this object
@@ -410,6 +625,11 @@ import com.mixpanel.android.util.MPLog;
             } finally {
                 db.endTransaction();
             }
+
+            for (int i = 0; i < movedRows.length; i++) {
+                getTokenRowCounts(mRowCounts.get(Table.ANONYMOUS_PEOPLE), token)[i] -= movedRows[i];
+                getTokenRowCounts(mRowCounts.get(Table.PEOPLE), token)[i] += movedRows[i];
+            }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not push anonymous updates records from " + Table.ANONYMOUS_PEOPLE.getName() + ". Re-initializing database.", e);
 
@@ -421,12 +641,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
             if (selectCursor != null) {
                 selectCursor.close();
             }
-            mDb.close();
+            releaseDatabase();
         }
 
         return count;
@@ -449,14 +669,12 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.EVENTS.getName() + " WHERE " + KEY_TOKEN + " = '" + token + "'");
-
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
+            selectCursor = db.rawQuery("SELECT * FROM " + Table.EVENTS.getName() + " WHERE " + KEY_TOKEN + " = ?", new String[] { token });
+            final SQLiteStatement update = getStatement(db, UPDATE_ROW_DATA, Table.EVENTS);
             db.beginTransaction();
             try {
                 while (selectCursor.moveToNext()) {
                     try {
-                        ContentValues values = new ContentValues();
                         final int dataColumnIndex = selectCursor.getColumnIndex(KEY_DATA) >= 0 ? selectCursor.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
                         JSONObject updatedData = new JSONObject(selectCursor.getString(dataColumnIndex));
                         JSONObject existingProps = updatedData.getJSONObject("properties");
@@ -466,10 +684,12 @@ import com.mixpanel.android.util.MPLog;
                             existingProps.put(key, value);
                         }
                         updatedData.put("properties", existingProps);
-                        values.put(KEY_DATA, updatedData.toString());
+                        final String data = updatedData.toString();
+                        update.bindString(1, data);
+                        update.bindLong(2, getUtf8Length(data));
                         final int idColumnIndex = selectCursor.getColumnIndex("_id") >= 0 ? selectCursor.getColumnIndex("_id") : ID_COLUMN_INDEX;
-                        int rowId = selectCursor.getInt(idColumnIndex);
-                        db.update(Table.EVENTS.getName(), values, "_id = " + rowId, null);
+                        update.bindLong(3, selectCursor.getLong(idColumnIndex));
+                        update.executeUpdateDelete();
                         count++;
                     } catch (final JSONException e) {
                         // Ignore this object
@@ -490,12 +710,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
             if (selectCursor != null) {
                 selectCursor.close();
             }
-            mDb.close();
+            releaseDatabase();
         }
 
         return count;
@@ -512,12 +732,18 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer deleteQuery = new StringBuffer("_id <= " + last_id + " AND " + KEY_TOKEN + " = '" + token + "'");
-
-            if (!includeAutomaticEvents) {
-                deleteQuery.append(" AND " + KEY_AUTOMATIC_DATA + "=0");
+            final int[] tokenRowCounts = getTokenRowCounts(getRowCounts(db, table), token);
+            final SQLiteStatement delete = getStatement(db, DELETE_SENT_ROWS, table);
+            delete.bindLong(1, Long.parseLong(last_id));
+            bindStringOrNull(delete, 2, token);
+
+            // Manual and automatic rows are deleted separately to keep their counts exact
+            delete.bindLong(3, 0);
+            tokenRowCounts[MANUAL_ROWS] -= delete.executeUpdateDelete();
+            if (includeAutomaticEvents) {
+                delete.bindLong(3, 1);
+                tokenRowCounts[AUTOMATIC_ROWS] -= delete.executeUpdateDelete();
             }
-            db.delete(tableName, deleteQuery.toString(), null);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -525,12 +751,12 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } catch (final Exception e) {
             MPLog.e(LOGTAG, "Unknown exception. Could not clean sent Mixpanel records from " + tableName + ".Re-initializing database.", e);
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -544,7 +770,11 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            final SQLiteStatement delete = getStatement(db, DELETE_EXPIRED_ROWS, table);
+            delete.bindLong(1, time);
+            delete.executeUpdateDelete();
+            // Expired rows could belong to any project, so count again when next needed
+            mRowCounts.remove(table);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -552,9 +782,130 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
+        }
+    }
+
+    /**
+     * Moves rows the server rejected out of table into the dead letter table, so they are no
+     * longer sent. Only the newest MAX_DEAD_LETTERS rejected rows are kept, older ones are dropped.
+     *
+     * @param afterId rows with an _id greater than this are moved
+     * @param lastId rows with an _id up to and including this are moved
+     * @param responseCode the HTTP status the server rejected the rows with
+     * @return the number of rows moved, or -1 if they couldn't be moved
+     */
+    public int moveToDeadLetters(Table table, String token, boolean includeAutomaticEvents, String afterId, String lastId, int responseCode) {
+        final String tableName = table.getName();
+        final String where = KEY_TOKEN + " = ? AND _id > ? AND _id <= ?" + (includeAutomaticEvents ? "" : " AND " + KEY_AUTOMATIC_DATA + " = 0");
+        final String[] whereArgs = { token, afterId, lastId };
+        int ret = -1;
+        if (null == token) {
+            return 0;
+        }
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.execSQL("INSERT INTO " + DEAD_LETTERS_TABLE + " (" + KEY_SOURCE_TABLE + ", " + KEY_TOKEN + ", " + KEY_DATA + ", " +
+                        KEY_CREATED_AT + ", " + KEY_RESPONSE_CODE + ") SELECT '" + tableName + "', " + KEY_TOKEN + ", " + KEY_DATA + ", " +
+                        KEY_CREATED_AT + ", " + responseCode + " FROM " + tableName + " WHERE " + where, whereArgs);
+                ret = db.delete(tableName, where, whereArgs);
+                db.execSQL("DELETE FROM " + DEAD_LETTERS_TABLE + " WHERE _id <= (SELECT MAX(_id) FROM " + DEAD_LETTERS_TABLE + ") - " + MAX_DEAD_LETTERS);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            mRowCounts.remove(table);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not move rejected Mixpanel records from " + tableName + ". Re-initializing database.", e);
+            deleteDB();
+            ret = -1;
+        } finally {
+            releaseDatabase();
+        }
+        return ret;
+    }
+
+    /**
+     * Removes dead letters created before time.
+     */
+    public void cleanupDeadLetters(long time) {
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.delete(DEAD_LETTERS_TABLE, KEY_CREATED_AT + " <= ?", new String[] { Long.toString(time) });
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel dead letters. Re-initializing database.", e);
+            deleteDB();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    /**
+     * Removes all dead letters given a project token.
+     * @param token token of the project to remove dead letters from
+     */
+    public void cleanupDeadLetters(String token) {
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            db.delete(DEAD_LETTERS_TABLE, KEY_TOKEN + " = ?", new String[] { token });
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean Mixpanel dead letters. Re-initializing database.", e);
+            deleteDB();
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    /**
+     * @return the tokens of every project with rows queued in the events, people or groups tables
+     */
+    public List<String> getQueuedTokens() {
+        final List<String> ret = new ArrayList<String>();
+        Cursor c = null;
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            c = db.rawQuery("SELECT DISTINCT " + KEY_TOKEN + " FROM " + Table.EVENTS.getName() +
+                    " UNION SELECT DISTINCT " + KEY_TOKEN + " FROM " + Table.PEOPLE.getName() +
+                    " UNION SELECT DISTINCT " + KEY_TOKEN + " FROM " + Table.GROUPS.getName(), null);
+            while (c.moveToNext()) {
+                final String token = c.getString(0);
+                if (null != token && !token.isEmpty()) {
+                    ret.add(token);
+                }
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not find queued Mixpanel projects.", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            releaseDatabase();
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of rejected rows kept for token
+     */
+    public int getDeadLetterCount(String token) {
+        Cursor c = null;
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            c = db.rawQuery("SELECT COUNT(*) FROM " + DEAD_LETTERS_TABLE + " WHERE " + KEY_TOKEN + " = ?", new String[] { token });
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not count Mixpanel dead letters.", e);
+            return 0;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            releaseDatabase();
         }
     }
 
@@ -568,7 +919,13 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_TOKEN + " = '" + token + "'", null);
+            final SQLiteStatement delete = getStatement(db, DELETE_TOKEN_ROWS, table);
+            bindStringOrNull(delete, 1, token);
+            delete.executeUpdateDelete();
+            final Map<String, int[]> rowCounts = mRowCounts.get(table);
+            if (null != rowCounts) {
+                rowCounts.remove(token);
+            }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -576,9 +933,9 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -597,7 +954,13 @@ import com.mixpanel.android.util.MPLog;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = '" + token + "'", null);
+            final SQLiteStatement delete = getStatement(db, DELETE_AUTOMATIC_ROWS, table);
+            bindStringOrNull(delete, 1, token);
+            delete.executeUpdateDelete();
+            final Map<String, int[]> rowCounts = mRowCounts.get(table);
+            if (null != rowCounts) {
+                getTokenRowCounts(rowCounts, token)[AUTOMATIC_ROWS] = 0;
+            }
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -605,14 +968,78 @@ import com.mixpanel.android.util.MPLog;
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            deleteDB();
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
     public void deleteDB() {
+        closeStatements();
         mDb.deleteDatabase();
+        mRowCounts.clear();
+    }
+
+    // Closes the connection after an operation, unless it should outlive the operation.
+    private void releaseDatabase() {
+        if (!mInGroupCommit && !mDb.mKeepOpen) {
+            closeStatements();
+            mDb.close();
+        }
+    }
+
+    // Returns a compiled statement for table, which is only valid until the database is closed.
+    // Callers must bind every parameter, since bindings from the last use are kept.
+    private SQLiteStatement getStatement(SQLiteDatabase db, int statement, Table table) {
+        if (db != mStatementsDb) {
+            closeStatements();
+            mStatementsDb = db;
+        }
+
+        final int key = statement * TABLE_COUNT + table.ordinal();
+        SQLiteStatement ret = mStatements.get(key);
+        if (null == ret) {
+            ret = db.compileStatement(getStatementSql(statement, table.getName()));
+            mStatements.put(key, ret);
+        }
+        return ret;
+    }
+
+    private void closeStatements() {
+        for (int i = 0; i < mStatements.size(); i++) {
+            mStatements.valueAt(i).close();
+        }
+        mStatements.clear();
+        mStatementsDb = null;
+    }
+
+    private static String getStatementSql(int statement, String tableName) {
+        switch (statement) {
+            case INSERT_ROW:
+                return "INSERT INTO " + tableName + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + ", " + KEY_DATA_SIZE + ") VALUES (?, ?, ?, ?, ?)";
+            case UPDATE_ROW_DATA:
+                return "UPDATE " + tableName + " SET " + KEY_DATA + " = ?, " + KEY_DATA_SIZE + " = ? WHERE _id = ?";
+            case DELETE_ROW:
+                return "DELETE FROM " + tableName + " WHERE _id = ?";
+            case DELETE_SENT_ROWS:
+                return "DELETE FROM " + tableName + " WHERE _id <= ? AND " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = ?";
+            case DELETE_EXPIRED_ROWS:
+                return "DELETE FROM " + tableName + " WHERE " + KEY_CREATED_AT + " <= ?";
+            case DELETE_TOKEN_ROWS:
+                return "DELETE FROM " + tableName + " WHERE " + KEY_TOKEN + " = ?";
+            case DELETE_AUTOMATIC_ROWS:
+                return "DELETE FROM " + tableName + " WHERE " + KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = ?";
+            default:
+                throw new IllegalArgumentException("Unknown statement " + statement);
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (null == value) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
     /**
@@ -627,48 +1054,83 @@ import com.mixpanel.android.util.MPLog;
      * current number of events in the queue.
      */
     public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
+        return generateDataString(table, token, includeAutomaticEvents, "0");
+    }
+
+    /**
+     * Like generateDataString(Table, String, boolean), but only considers rows with an _id greater
+     * than afterId, so a caller can page through the queue without deleting the rows it has read.
+     *
+     * @param afterId the maximum ID returned for the previous batch, or "0" to start from the oldest row
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId) {
+        return generateDataString(table, token, includeAutomaticEvents, afterId, BATCH_SIZE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like generateDataString(Table, String, boolean, String), but with limits on the size of the batch.
+     * A batch always holds at least one row, even if that row alone is larger than maxBytes.
+     *
+     * @param maxRows the most rows the batch may hold
+     * @param maxBytes the most bytes of stored row data the batch may hold
+     * @return as generateDataString(Table, String, boolean), with the bytes of row data
+     * in the batch as a fourth element, and the number of rows the maximum ID covers,
+     * including any that couldn't be read, as a fifth.
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRows, int maxBytes) {
         Cursor c = null;
-        Cursor queueCountCursor = null;
         String data = null;
         String last_id = null;
         String queueCount = null;
+        int batchBytes = 0;
+        int coveredRows = 0;
         final String tableName = table.getName();
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
         try {
-            StringBuffer rawDataQuery = new StringBuffer("SELECT * FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            if (!includeAutomaticEvents) {
-                rawDataQuery.append("AND " + KEY_AUTOMATIC_DATA + " = 0 ");
-                queueCountQuery.append(" AND " + KEY_AUTOMATIC_DATA + " = 0");
+            if (includeAutomaticEvents) {
+                // Seek the manual and automatic ranges of the token index separately, so only
+                // the two short results need merging, rather than every row for the token.
+                final String rawDataQuery = "SELECT * FROM (" + getBatchQuery(tableName, 0, maxRows) + ") UNION ALL " +
+                        "SELECT * FROM (" + getBatchQuery(tableName, 1, maxRows) + ") ORDER BY _id ASC LIMIT " + maxRows;
+                c = db.rawQuery(rawDataQuery, new String[] { token, afterId, token, afterId });
+            } else {
+                c = db.rawQuery(getBatchQuery(tableName, 0, maxRows), new String[] { token, afterId });
             }
 
-            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50");
-            c = db.rawQuery(rawDataQuery.toString(), null);
-
-            queueCountCursor = db.rawQuery(queueCountQuery.toString(), null);
-            queueCountCursor.moveToFirst();
-            queueCount = String.valueOf(queueCountCursor.getInt(0));
-
-            final JSONArray arr = new JSONArray();
+            final int idColumnIndex = c.getColumnIndex("_id") >= 0 ? c.getColumnIndex("_id") : ID_COLUMN_INDEX;
+            final int dataColumnIndex = c.getColumnIndex(KEY_DATA) >= 0 ? c.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
+            final int dataSizeColumnIndex = c.getColumnIndex(KEY_DATA_SIZE) >= 0 ? c.getColumnIndex(KEY_DATA_SIZE) : DATA_SIZE_COLUMN_INDEX;
+            final StringBuilder batch = getBatchBuffer();
+            int batchRows = 0;
 
+            batch.append('[');
             while (c.moveToNext()) {
-                if (c.isLast()) {
-                    final int idColumnIndex = c.getColumnIndex("_id") >= 0 ? c.getColumnIndex("_id") : ID_COLUMN_INDEX;
-                    last_id = c.getString(idColumnIndex);
+                final int rowBytes = c.getInt(dataSizeColumnIndex);
+                if (batchRows > 0 && batchBytes + rowBytes > maxBytes) {
+                    break;
                 }
-                try {
-                    final int dataColumnIndex = c.getColumnIndex(KEY_DATA) >= 0 ? c.getColumnIndex(KEY_DATA) : DATA_COLUMN_INDEX;
-                    final JSONObject j = new JSONObject(c.getString(dataColumnIndex));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+                if (appendRow(batch, batchRows > 0, c.getString(dataColumnIndex))) {
+                    batchRows++;
+                    batchBytes += rowBytes;
                 }
+                // Rows we couldn't use are still covered by the ID, so they are cleaned up with the batch
+                last_id = c.getString(idColumnIndex);
+                coveredRows++;
+            }
+            batch.append(']');
+
+            if (batchRows > 0) {
+                data = batch.toString();
             }
 
-            if (arr.length() > 0) {
-                data = arr.toString();
+            int rowCount = getQueueCount(db, table, token, includeAutomaticEvents);
+            if (c.getCount() > rowCount) {
+                // Another adapter has written to this table since we counted it
+                mRowCounts.remove(table);
+                rowCount = getQueueCount(db, table, token, includeAutomaticEvents);
             }
+            queueCount = String.valueOf(rowCount);
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
 
@@ -679,22 +1141,241 @@ import com.mixpanel.android.util.MPLog;
             last_id = null;
             data = null;
         } finally {
-            mDb.close();
+            releaseDatabase();
             if (c != null) {
                 c.close();
             }
-            if (queueCountCursor != null) {
-                queueCountCursor.close();
-            }
         }
 
         if (last_id != null && data != null) {
-            final String[] ret = {last_id, data, queueCount};
+            final String[] ret = {last_id, data, queueCount, String.valueOf(batchBytes), String.valueOf(coveredRows)};
             return ret;
         }
         return null;
     }
 
+    /**
+     * Like generateDataString(Table, String, boolean, String, int, int), but only reads the IDs and
+     * sizes of the rows, so the batch can be written later by writeBatch without holding it in memory.
+     *
+     * @return String array containing the maximum ID of the batch, the number of rows in the batch,
+     * the total current number of rows in the queue and the bytes of row data in the batch, or
+     * null if there are no rows to send.
+     */
+    public String[] describeBatch(Table table, String token, boolean includeAutomaticEvents, String afterId, int maxRows, int maxBytes) {
+        Cursor c = null;
+        String last_id = null;
+        String queueCount = null;
+        int batchRows = 0;
+        int batchBytes = 0;
+        final String tableName = table.getName();
+        final SQLiteDatabase db = mDb.getReadableDatabase();
+        final String columns = "_id, " + KEY_DATA_SIZE;
+
+        try {
+            if (includeAutomaticEvents) {
+                final String rawDataQuery = "SELECT * FROM (" + getBatchQuery(columns, tableName, 0, false, maxRows) + ") UNION ALL " +
+                        "SELECT * FROM (" + getBatchQuery(columns, tableName, 1, false, maxRows) + ") ORDER BY _id ASC LIMIT " + maxRows;
+                c = db.rawQuery(rawDataQuery, new String[] { token, afterId, token, afterId });
+            } else {
+                c = db.rawQuery(getBatchQuery(columns, tableName, 0, false, maxRows), new String[] { token, afterId });
+            }
+
+            while (c.moveToNext()) {
+                final int rowBytes = c.getInt(1);
+                if (batchRows > 0 && batchBytes + rowBytes > maxBytes) {
+                    break;
+                }
+                batchRows++;
+                batchBytes += rowBytes;
+                last_id = c.getString(0);
+            }
+
+            int rowCount = getQueueCount(db, table, token, includeAutomaticEvents);
+            if (c.getCount() > rowCount) {
+                // Another adapter has written to this table since we counted it
+                mRowCounts.remove(table);
+                rowCount = getQueueCount(db, table, token, includeAutomaticEvents);
+            }
+            queueCount = String.valueOf(rowCount);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
+            last_id = null;
+        } finally {
+            releaseDatabase();
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        if (last_id != null) {
+            final String[] ret = {last_id, String.valueOf(batchRows), queueCount, String.valueOf(batchBytes)};
+            return ret;
+        }
+        return null;
+    }
+
+    /**
+     * Writes a batch found by describeBatch to out as a JSON array, one row at a time.
+     *
+     * @param afterId the afterId the batch was described with
+     * @param lastId the maximum ID returned by describeBatch
+     * @throws IOException if out can't be written, or if the rows can't be read. Either way the
+     * batch written so far is incomplete and must not be sent.
+     */
+    public void writeBatch(Table table, String token, boolean includeAutomaticEvents, String afterId, String lastId, Writer out) throws IOException {
+        Cursor c = null;
+        final String tableName = table.getName();
+        final SQLiteDatabase db = mDb.getReadableDatabase();
+        final String columns = "_id, " + KEY_DATA;
+
+        out.write('[');
+        try {
+            if (includeAutomaticEvents) {
+                final String rawDataQuery = "SELECT * FROM (" + getBatchQuery(columns, tableName, 0, true, -1) + ") UNION ALL " +
+                        "SELECT * FROM (" + getBatchQuery(columns, tableName, 1, true, -1) + ") ORDER BY _id ASC";
+                c = queryBatchRows(db, rawDataQuery, new String[] { token, afterId, lastId, token, afterId, lastId });
+            } else {
+                c = queryBatchRows(db, getBatchQuery(columns, tableName, 0, true, -1), new String[] { token, afterId, lastId });
+            }
+
+            boolean needsSeparator = false;
+            while (c.moveToNext()) {
+                final String json = repairRow(c.getString(1));
+                if (null != json) {
+                    if (needsSeparator) {
+                        out.write(',');
+                    }
+                    out.write(json);
+                    needsSeparator = true;
+                }
+            }
+        } catch (final SQLiteException e) {
+            // Closing the array here would send a shorter batch, and delete the rows never read
+            MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ".", e);
+            throw new IOException(e);
+        } finally {
+            releaseDatabase();
+            if (c != null) {
+                c.close();
+            }
+        }
+        out.write(']');
+    }
+
+    // The cursor writeBatch reads rows from
+    /* package */ Cursor queryBatchRows(SQLiteDatabase db, String query, String[] selectionArgs) {
+        return db.rawQuery(query, selectionArgs);
+    }
+
+    // Returns the number of rows for a token in table, without touching the table
+    // unless its rows haven't been counted since the database was last opened.
+    private int getQueueCount(SQLiteDatabase db, Table table, String token, boolean includeAutomaticEvents) {
+        final int[] tokenRowCounts = getTokenRowCounts(getRowCounts(db, table), token);
+        return Math.max(0, tokenRowCounts[MANUAL_ROWS] + (includeAutomaticEvents ? tokenRowCounts[AUTOMATIC_ROWS] : 0));
+    }
+
+    private Map<String, int[]> getRowCounts(SQLiteDatabase db, Table table) {
+        Map<String, int[]> ret = mRowCounts.get(table);
+        if (null == ret) {
+            ret = new HashMap<String, int[]>();
+            Cursor c = null;
+            try {
+                c = db.rawQuery("SELECT " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", COUNT(*) FROM " + table.getName() +
+                        " GROUP BY " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA, null);
+                while (c.moveToNext()) {
+                    getTokenRowCounts(ret, c.getString(0))[c.getInt(1) != 0 ? AUTOMATIC_ROWS : MANUAL_ROWS] += c.getInt(2);
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            mRowCounts.put(table, ret);
+        }
+        return ret;
+    }
+
+    private static int[] getTokenRowCounts(Map<String, int[]> rowCounts, String token) {
+        int[] ret = rowCounts.get(token);
+        if (null == ret) {
+            ret = new int[2];
+            rowCounts.put(token, ret);
+        }
+        return ret;
+    }
+
+    // Appends a stored row to a JSON array under construction, returning false if the row was skipped.
+    // Rows are written by addJSON as serialized JSONObjects, so anything that looks like one is
+    // copied as-is; only rows that don't are parsed, and dropped if they can't be repaired.
+    private static boolean appendRow(StringBuilder batch, boolean needsSeparator, String row) {
+        final String json = repairRow(row);
+        if (null == json) {
+            return false;
+        }
+        if (needsSeparator) {
+            batch.append(',');
+        }
+        batch.append(json);
+        return true;
+    }
+
+    // Returns a stored row as a serialized JSONObject, or null if it can't be sent
+    private static String repairRow(String row) {
+        String json = null;
+        if (null != row) {
+            final int length = row.length();
+            if (length >= 2 && row.charAt(0) == '{' && row.charAt(length - 1) == '}') {
+                json = row;
+            } else {
+                try {
+                    json = new JSONObject(row).toString();
+                } catch (final JSONException e) {
+                    // Ignore this object
+                }
+            }
+        }
+        return json;
+    }
+
+    private StringBuilder getBatchBuffer() {
+        // Don't hang on to the memory from an unusually large batch
+        if (null == mBatchBuffer || mBatchBuffer.capacity() > MAX_RETAINED_BATCH_BUFFER_CHARS) {
+            mBatchBuffer = new StringBuilder(INITIAL_BATCH_BUFFER_CHARS);
+        }
+        mBatchBuffer.setLength(0);
+        return mBatchBuffer;
+    }
+
+    // A page of rows for a token with a given automatic_data value, read in order from the token index
+    private static String getBatchQuery(String tableName, int automaticData, int limit) {
+        return getBatchQuery("*", tableName, automaticData, false, limit);
+    }
+
+    // As above, selecting only columns. If bounded, the page also ends at a second _id argument.
+    private static String getBatchQuery(String columns, String tableName, int automaticData, boolean bounded, int limit) {
+        return "SELECT " + columns + " FROM " + tableName + " WHERE " + KEY_TOKEN + " = ? AND " + KEY_AUTOMATIC_DATA + " = " + automaticData +
+                " AND _id > ?" + (bounded ? " AND _id <= ?" : "") + " ORDER BY _id ASC LIMIT " + limit;
+    }
+
+    // The size of s encoded as UTF-8, without encoding it
+    private static int getUtf8Length(String s) {
+        final int length = s.length();
+        int ret = length;
+        for (int i = 0; i < length; i++) {
+            final char ch = s.charAt(i);
+            if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                ret += 2; // four bytes for the pair
+                i++;
+            } else if (ch >= 0x800) {
+                ret += 2;
+            } else if (ch >= 0x80) {
+                ret += 1;
+            }
+        }
+        return ret;
+    }
+
     public File getDatabaseFile() {
         return mDb.mDatabaseFile;
     }
@@ -0,0 +1,110 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for handing objects from many producer threads
+ * to a single consumer thread.
+ *
+ * <p>Each slot carries a sequence number, so producers only contend on a single
+ * compare-and-set of the tail counter and never block one another or the consumer.
+ * offer() may be called from any thread. poll() and isEmpty() must only ever be
+ * called from one (consumer) thread.
+ */
+/* package */ class MPSCRingBuffer<E> {
+
+    public MPSCRingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Ring buffer capacity must be positive, was " + capacity);
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size = size << 1;
+        }
+
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<E>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mTail = new AtomicLong(0);
+        mHead = 0;
+    }
+
+    /**
+     * Adds an element to the queue, if there is room.
+     *
+     * @param element the element to add, must not be null
+     * @return false if the queue was full and the element was not added
+     */
+    public boolean offer(E element) {
+        if (null == element) {
+            throw new NullPointerException("Can't add null elements to a ring buffer");
+        }
+
+        long position = mTail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mMask);
+            final long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't released this slot yet, we've wrapped around.
+                return false;
+            } else {
+                // Another producer claimed this slot first
+                position = mTail.get();
+            }
+        }
+
+        mElements.set(index, element);
+        // Publishes the element to the consumer
+        mSequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest element of the queue. Consumer thread only.
+     *
+     * @return the oldest element, or null if no published elements remain
+     */
+    public E poll() {
+        final long position = mHead;
+        final int index = (int) (position & mMask);
+        if (mSequences.get(index) != position + 1) {
+            return null;
+        }
+
+        final E ret = mElements.get(index);
+        mElements.lazySet(index, null);
+        // Releases the slot for producers on the next lap of the ring
+        mSequences.lazySet(index, position + mMask + 1);
+        mHead = position + 1;
+        return ret;
+    }
+
+    /**
+     * Consumer thread only. Elements that are being offered concurrently may or may not be visible.
+     */
+    public boolean isEmpty() {
+        return mSequences.get((int) (mHead & mMask)) != mHead + 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail;
+    private long mHead; // Only touched by the consumer
+}
@@ -421,7 +421,7 @@ public class MixpanelAPI {
         mTrackingDebug = constructTrackingDebug();
         mMessages = getAnalyticsMessages();
         mPersistentIdentity = getPersistentIdentity(context, referrerPreferences, token);
-        mEventTimings = mPersistentIdentity.getTimeEvents();
+        mEventTimings = mPersistentIdentity.getTimedEventRegistry();
 
         if (optOutTrackingDefault && (hasOptedOutTracking() || !mPersistentIdentity.hasOptOutFlag(token))) {
             optOutTracking();
@@ -764,11 +764,7 @@ public class MixpanelAPI {
         }
         synchronized (mPersistentIdentity) {
             String currentEventsDistinctId = mPersistentIdentity.getEventsDistinctId();
-            mPersistentIdentity.setAnonymousIdIfAbsent(currentEventsDistinctId);
-            mPersistentIdentity.setEventsDistinctId(distinctId);
-            if(markAsUserId) {
-                mPersistentIdentity.markEventsUserIdPresent();
-            }
+            mPersistentIdentity.identify(distinctId, markAsUserId);
             String decideId = mPersistentIdentity.getPeopleDistinctId();
             if (null == decideId) {
                 decideId = mPersistentIdentity.getEventsDistinctId();
@@ -797,10 +793,7 @@ public class MixpanelAPI {
     public void timeEvent(final String eventName) {
         if (hasOptedOutTracking()) return;
         final long writeTime = System.currentTimeMillis();
-        synchronized (mEventTimings) {
-            mEventTimings.put(eventName, writeTime);
-            mPersistentIdentity.addTimeEvent(eventName, writeTime);
-        }
+        mEventTimings.start(eventName, writeTime);
     }
 
     /**
@@ -812,10 +805,7 @@ public class MixpanelAPI {
      */
     public double eventElapsedTime(final String eventName) {
         final long currentTime = System.currentTimeMillis();
-        Long startTime;
-        synchronized (mEventTimings) {
-            startTime = mEventTimings.get(eventName);
-        }
+        final Long startTime = mEventTimings.get(eventName);
         return startTime == null ? 0 : (double)((currentTime - startTime) / 1000);
     }
 
@@ -926,6 +916,58 @@ public class MixpanelAPI {
         mMessages.postToServer(new AnalyticsMessages.FlushDescription(mToken));
     }
 
+    /**
+     * Like {@link #flush()}, but lets you find out what was sent, and bounds how long that takes.
+     *
+     * <p>Useful before your process is torn down, for example at the end of a background job.
+     * Sending stops at the deadline, and anything that wasn't sent stays queued for a later flush.
+     * The returned Future completes once every queue was flushed, or at the deadline, so
+     * Future.get() never waits longer than timeoutMillis. Queues that weren't done by then,
+     * including when the flush never got to start, are reported as timed out. If tracking is
+     * opted out, it completes right away with nothing sent.
+     *
+     * <p>Events are delivered at least once: a batch of events still being sent at the deadline
+     * stays queued and is sent again by a later flush even if Mixpanel received it, and Mixpanel
+     * drops the copies by their $insert_id. People and group updates have no such id, so a
+     * batch of them still being sent at the deadline is waited for in the background instead,
+     * and no new batches are started.
+     *
+     * @param timeoutMillis how long the flush may take, in milliseconds
+     * @return a Future of the rows and bytes sent, and the outcome, for each queue
+     */
+    public Future<FlushResult> flush(long timeoutMillis) {
+        final FlushFuture ret = new FlushFuture(mToken, timeoutMillis);
+        if (hasOptedOutTracking()) {
+            ret.finish();
+            return ret;
+        }
+        mMessages.postToServer(ret);
+        return ret;
+    }
+
+    /**
+     * Sets a listener to be told when uploads fail and are retried later, and when they recover,
+     * for monitoring. Uploads are shared by every MixpanelAPI instance in your application,
+     * so the listener hears about every project; use the token it's given to tell them apart.
+     *
+     * @param listener the listener to call on the Mixpanel worker thread, or null to remove it
+     */
+    public void setRetryMetricsListener(RetryMetricsListener listener) {
+        mMessages.setRetryMetricsListener(listener);
+    }
+
+    /**
+     * Returns how many scheduled flushes were held back, then sent while the radio was already
+     * active or the device was on wifi or charging, instead of waking the radio themselves.
+     * Counts flushes for every MixpanelAPI instance in your application.
+     *
+     * @return the number of radio wake ups avoided, always 0 unless
+     * com.mixpanel.android.MPConfig.RadioAwareFlush is enabled
+     */
+    public long getAvoidedRadioWakeups() {
+        return mMessages.getAvoidedRadioWakeups();
+    }
+
     /**
      * Returns a json object of the user's current super properties
      *
@@ -1313,10 +1355,7 @@ public class MixpanelAPI {
             getPeople().clearCharges();
         }
         mPersistentIdentity.clearPreferences();
-        synchronized (mEventTimings) {
-            mEventTimings.clear();
-            mPersistentIdentity.clearTimeEvents();
-        }
+        mEventTimings.clear();
         mPersistentIdentity.clearReferrerProperties();
         mPersistentIdentity.setOptOutTracking(true, mToken);
     }
@@ -2008,6 +2047,10 @@ public class MixpanelAPI {
         if (mConfig.getFlushOnBackground()) {
             flush();
         }
+        if (mConfig.getBackgroundFlushJob() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MixpanelFlushJobService.schedule(mContext, mConfig);
+        }
+        WriteBehindPreferences.flushAll();
         mUpdatesFromMixpanel.applyPersistedUpdates();
     }
 
@@ -2063,7 +2106,7 @@ public class MixpanelAPI {
         final String mixpanelPrefsName = "com.mixpanel.android.mpmetrics.Mixpanel";
         final Future<SharedPreferences> mixpanelPrefs = sPrefsLoader.loadPreferences(context, mixpanelPrefsName, null);
 
-        return new PersistentIdentity(referrerPreferences, storedPreferences, timeEventsPrefs, mixpanelPrefs);
+        return new PersistentIdentity(referrerPreferences, storedPreferences, timeEventsPrefs, mixpanelPrefs, mConfig.getPreferencesWriteInterval());
     }
 
     /* package */ DecideMessages constructDecideUpdates(final String token, final DecideMessages.OnNewResultsListener listener, UpdatesFromMixpanel updatesFromMixpanel) {
@@ -2868,12 +2911,7 @@ public class MixpanelAPI {
             return;
         }
 
-        final Long eventBegin;
-        synchronized (mEventTimings) {
-            eventBegin = mEventTimings.get(eventName);
-            mEventTimings.remove(eventName);
-            mPersistentIdentity.removeTimeEvent(eventName);
-        }
+        final Long eventBegin = mEventTimings.remove(eventName);
 
         try {
             final JSONObject messageProps = new JSONObject();
@@ -2891,12 +2929,14 @@ public class MixpanelAPI {
             // but DO allow the caller to override them in their given properties.
             final double timeSecondsDouble = (System.currentTimeMillis()) / 1000.0;
             final long timeSeconds = (long) timeSecondsDouble;
-            final String distinctId = getDistinctId();
-            final String anonymousId = getAnonymousId();
-            final String userId = getUserId();
+            // A single read, so the ids all come from the same identify() or reset()
+            final PersistentIdentity.Identity identity = mPersistentIdentity.getIdentity();
+            final String distinctId = identity.getDistinctId();
+            final String anonymousId = identity.getAnonymousId();
+            final String userId = identity.getUserId();
             messageProps.put("time", timeSeconds);
             messageProps.put("distinct_id", distinctId);
-            messageProps.put("$had_persisted_distinct_id", mPersistentIdentity.getHadPersistedDistinctId());
+            messageProps.put("$had_persisted_distinct_id", identity.getHadPersistedDistinctId());
             if(anonymousId != null) {
                 messageProps.put("$device_id", anonymousId);
             }
@@ -3029,7 +3069,7 @@ public class MixpanelAPI {
     private final ConnectIntegrations mConnectIntegrations;
     private final DecideMessages mDecideMessages;
     private final Map<String, String> mDeviceInfo;
-    private final Map<String, Long> mEventTimings;
+    private final TimedEventRegistry mEventTimings;
     private MixpanelActivityLifecycleCallbacks mMixpanelActivityLifecycleCallbacks;
     private final SessionMetadata mSessionMetadata;
 
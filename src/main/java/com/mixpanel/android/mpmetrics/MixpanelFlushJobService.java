@@ -0,0 +1,105 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import com.mixpanel.android.util.MPLog;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Flushes the queued events, people and groups updates of every project once the app has gone
+ * to the background, so they don't wait for the app to come back. The system runs the job when
+ * there is a network, and each run gets a single time slice. Runs that don't drain the queues,
+ * because of a failure or because the time slice ran out, ask the system to reschedule them with
+ * a backoff.
+ *
+ * <p>Set com.mixpanel.android.MPConfig.BackgroundFlushJob to true in your manifest to use the job.
+ * It is only available on API 21 and up.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MixpanelFlushJobService extends JobService {
+
+    /* package */ static void schedule(Context context, MPConfig config) {
+        final JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (null == scheduler) {
+            return;
+        }
+
+        final JobInfo job = new JobInfo.Builder(config.getFlushJobId(), new ComponentName(context, MixpanelFlushJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .build();
+        try {
+            if (scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+                MPLog.w(LOGTAG, "Could not schedule background flush job.");
+            }
+        } catch (final RuntimeException e) {
+            // Thrown when the service isn't declared in the manifest, or the app has too many jobs
+            MPLog.w(LOGTAG, "Could not schedule background flush job.", e);
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final Context context = getApplicationContext();
+        final MPConfig config = MPConfig.getInstance(context);
+        final FlushFuture flush = new FlushFuture(null, config.getFlushJobTimeSlice());
+        synchronized (this) {
+            mFlush = flush;
+        }
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean reschedule;
+                try {
+                    AnalyticsMessages.getInstance(context).postToServer(flush);
+                    final FlushResult result = flush.get();
+                    MPLog.v(LOGTAG, "Background flush finished: " + result);
+                    // Also true when the worker was too busy to start before the time slice ran out
+                    reschedule = !result.isSuccessful();
+                } catch (final CancellationException e) {
+                    // onStopJob already asked to be rescheduled
+                    return;
+                } catch (final InterruptedException e) {
+                    reschedule = true;
+                }
+
+                synchronized (MixpanelFlushJobService.this) {
+                    if (mFlush != flush) {
+                        return;
+                    }
+                    mFlush = null;
+                }
+                jobFinished(params, reschedule);
+            }
+        }, "com.mixpanel.android.FlushJob");
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        final FlushFuture flush;
+        synchronized (this) {
+            flush = mFlush;
+            mFlush = null;
+        }
+        if (null != flush) {
+            flush.cancel(false);
+        }
+        return true;
+    }
+
+    private FlushFuture mFlush;
+
+    private static final long BACKOFF_MILLIS = 30 * 1000;
+    private static final String LOGTAG = "MixpanelAPI.FlushJob";
+}
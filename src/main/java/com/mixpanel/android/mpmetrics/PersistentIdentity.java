@@ -40,11 +40,20 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public PersistentIdentity(Future<SharedPreferences> referrerPreferences, Future<SharedPreferences> storedPreferences, Future<SharedPreferences> timeEventsPreferences, Future<SharedPreferences> mixpanelPreferences) {
+        this(referrerPreferences, storedPreferences, timeEventsPreferences, mixpanelPreferences, 0);
+    }
+
+    /**
+     * @param writeIntervalMillis how long changes to the stored and time events preferences may be
+     *     held in memory before they're written, see {@link WriteBehindPreferences}
+     */
+    public PersistentIdentity(Future<SharedPreferences> referrerPreferences, Future<SharedPreferences> storedPreferences, Future<SharedPreferences> timeEventsPreferences, Future<SharedPreferences> mixpanelPreferences, long writeIntervalMillis) {
+        mWriteIntervalMillis = writeIntervalMillis;
         mLoadReferrerPreferences = referrerPreferences;
         mLoadStoredPreferences = storedPreferences;
         mTimeEventsPreferences = timeEventsPreferences;
         mMixpanelPreferences = mixpanelPreferences;
-        mSuperPropertiesCache = null;
+        mSuperProperties = null;
         mReferrerPropertiesCache = null;
         mIdentitiesLoaded = false;
         mReferrerChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
@@ -59,53 +68,27 @@ import com.mixpanel.android.util.MPLog;
     }
 
     // Super properties
+    // Readers never lock: every change builds a new SuperProperties and publishes it whole
     public void addSuperPropertiesToObject(JSONObject ob) {
-        synchronized (mSuperPropsLock) {
-            final JSONObject superProperties = this.getSuperPropertiesCache();
-            final Iterator<?> superIter = superProperties.keys();
-            while (superIter.hasNext()) {
-                final String key = (String) superIter.next();
-
-                try {
-                    ob.put(key, superProperties.get(key));
-                } catch (JSONException e) {
-                    MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
-                }
-            }
-        }
+        getSuperProperties().putInto(ob);
     }
 
     public void updateSuperProperties(SuperPropertyUpdate updates) {
         synchronized (mSuperPropsLock) {
-            final JSONObject oldPropCache = getSuperPropertiesCache();
-            final JSONObject copy = new JSONObject();
-
-            try {
-                final Iterator<String> keys = oldPropCache.keys();
-                while (keys.hasNext()) {
-                    final String k = keys.next();
-                    final Object v = oldPropCache.get(k);
-                    copy.put(k, v);
-                }
-            } catch (JSONException e) {
-                MPLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
-                return;
-            }
-
+            final JSONObject copy = getSuperProperties().toJSON();
             final JSONObject replacementCache = updates.update(copy);
             if (replacementCache == null) {
                 MPLog.w(LOGTAG, "An update to Mixpanel's super properties returned null, and will have no effect.");
                 return;
             }
 
-            mSuperPropertiesCache = replacementCache;
-            storeSuperProperties();
+            publishSuperProperties(replacementCache);
         }
     }
 
     public void registerSuperProperties(JSONObject superProperties) {
         synchronized (mSuperPropsLock) {
-            final JSONObject propCache = getSuperPropertiesCache();
+            final JSONObject propCache = getSuperProperties().toJSON();
 
             for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
                 final String key = (String) iter.next();
@@ -116,22 +99,22 @@ import com.mixpanel.android.util.MPLog;
                 }
             }
 
-            storeSuperProperties();
+            publishSuperProperties(propCache);
         }
     }
 
     public void unregisterSuperProperty(String superPropertyName) {
         synchronized (mSuperPropsLock) {
-            final JSONObject propCache = getSuperPropertiesCache();
+            final JSONObject propCache = getSuperProperties().toJSON();
             propCache.remove(superPropertyName);
 
-            storeSuperProperties();
+            publishSuperProperties(propCache);
         }
     }
 
     public void registerSuperPropertiesOnce(JSONObject superProperties) {
         synchronized (mSuperPropsLock) {
-            final JSONObject propCache = getSuperPropertiesCache();
+            final JSONObject propCache = getSuperProperties().toJSON();
 
             for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
                 final String key = (String) iter.next();
@@ -144,14 +127,13 @@ import com.mixpanel.android.util.MPLog;
                 }
             }// for
 
-            storeSuperProperties();
+            publishSuperProperties(propCache);
         }
     }
 
     public void clearSuperProperties() {
         synchronized (mSuperPropsLock) {
-            mSuperPropertiesCache = new JSONObject();
-            storeSuperProperties();
+            publishSuperProperties(new JSONObject());
         }
     }
 
@@ -180,35 +162,37 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
-    public synchronized String getAnonymousId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
+    /**
+     * @return the current events identity. Only takes a lock the first time, to load it.
+     */
+    public Identity getIdentity() {
+        final Identity current = mIdentity;
+        if (null != current) {
+            return current;
         }
-        return mAnonymousId;
-    }
 
-    public synchronized boolean getHadPersistedDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
+        synchronized (this) {
+            if (! mIdentitiesLoaded) {
+                readIdentities();
+            }
+            return null != mIdentity ? mIdentity : makeIdentity();
         }
-        return mHadPersistedDistinctId;
     }
 
-    public synchronized String getEventsDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        return mEventsDistinctId;
+    public String getAnonymousId() {
+        return getIdentity().getAnonymousId();
     }
 
-    public synchronized String getEventsUserId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
-        }
-        if(mEventsUserIdPresent) {
-            return mEventsDistinctId;
-        }
-        return null;
+    public boolean getHadPersistedDistinctId() {
+        return getIdentity().getHadPersistedDistinctId();
+    }
+
+    public String getEventsDistinctId() {
+        return getIdentity().getDistinctId();
+    }
+
+    public String getEventsUserId() {
+        return getIdentity().getUserId();
     }
 
     public synchronized void setAnonymousIdIfAbsent(String anonymousId) {
@@ -221,6 +205,7 @@ import com.mixpanel.android.util.MPLog;
         mAnonymousId = anonymousId;
         mHadPersistedDistinctId = true;
         writeIdentities();
+        publishIdentity();
     }
 
     public synchronized void setEventsDistinctId(String eventsDistinctId) {
@@ -229,6 +214,7 @@ import com.mixpanel.android.util.MPLog;
         }
         mEventsDistinctId = eventsDistinctId;
         writeIdentities();
+        publishIdentity();
     }
 
     public synchronized void markEventsUserIdPresent() {
@@ -237,6 +223,27 @@ import com.mixpanel.android.util.MPLog;
         }
         mEventsUserIdPresent = true;
         writeIdentities();
+        publishIdentity();
+    }
+
+    /**
+     * Switches events to distinctId in a single step, keeping the current distinct id as the
+     * anonymous id if there isn't one yet, so track() never sees part of the change.
+     */
+    public synchronized void identify(String distinctId, boolean markAsUserId) {
+        if (! mIdentitiesLoaded) {
+            readIdentities();
+        }
+        if (mAnonymousId == null) {
+            mAnonymousId = mEventsDistinctId;
+            mHadPersistedDistinctId = true;
+        }
+        mEventsDistinctId = distinctId;
+        if (markAsUserId) {
+            mEventsUserIdPresent = true;
+        }
+        writeIdentities();
+        publishIdentity();
     }
 
     public synchronized String getPeopleDistinctId() {
@@ -260,11 +267,13 @@ import com.mixpanel.android.util.MPLog;
         // on messages already queued to send with AnalyticsMessages.
 
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
+            final SharedPreferences prefs = getStoredPreferences();
             final SharedPreferences.Editor prefsEdit = prefs.edit();
             prefsEdit.clear();
             writeEdits(prefsEdit);
-            readSuperProperties();
+            synchronized (mSuperPropsLock) {
+                readSuperProperties();
+            }
             readIdentities();
         } catch (final ExecutionException e) {
             throw new RuntimeException(e.getCause());
@@ -274,21 +283,12 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public void clearTimeEvents() {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.clear();
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
+        getTimedEventRegistry().clear();
     }
 
     public synchronized void storePushId(String registrationId) {
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
+            final SharedPreferences prefs = getStoredPreferences();
             final SharedPreferences.Editor editor = prefs.edit();
             editor.putString("push_id", registrationId);
             writeEdits(editor);
@@ -301,7 +301,7 @@ import com.mixpanel.android.util.MPLog;
 
     public synchronized void clearPushId() {
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
+            final SharedPreferences prefs = getStoredPreferences();
             final SharedPreferences.Editor editor = prefs.edit();
             editor.remove("push_id");
             writeEdits(editor);
@@ -315,7 +315,7 @@ import com.mixpanel.android.util.MPLog;
     public synchronized String getPushId() {
         String ret = null;
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
+            final SharedPreferences prefs = getStoredPreferences();
             ret = prefs.getString("push_id", null);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Can't write push id to shared preferences", e.getCause());
@@ -325,51 +325,34 @@ import com.mixpanel.android.util.MPLog;
         return ret;
     }
 
-    public Map<String, Long> getTimeEvents() {
-        Map<String, Long> timeEvents = new HashMap<>();
-
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-
-            Map<String, ?> allEntries = prefs.getAll();
-            for (Map.Entry<String, ?> entry : allEntries.entrySet()) {
-                timeEvents.put(entry.getKey(), Long.valueOf(entry.getValue().toString()));
+    /**
+     * @return the start times of timed events, loaded from the time events preferences on first use
+     */
+    public TimedEventRegistry getTimedEventRegistry() {
+        synchronized (mTimedEventsLock) {
+            if (null == mTimedEventRegistry) {
+                try {
+                    mTimedEventRegistry = new TimedEventRegistry(getTimeEventsPreferences());
+                } catch (final ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e.getCause());
+                }
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
+            return mTimedEventRegistry;
         }
+    }
 
-        return timeEvents;
+    public Map<String, Long> getTimeEvents() {
+        return getTimedEventRegistry().getAll();
     }
 
-    // access is synchronized outside (mEventTimings)
     public void removeTimeEvent(String timeEventName) {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.remove(timeEventName);
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
+        getTimedEventRegistry().remove(timeEventName);
     }
 
-    // access is synchronized outside (mEventTimings)
     public void addTimeEvent(String timeEventName, Long timeEventTimestamp) {
-        try {
-            final SharedPreferences prefs = mTimeEventsPreferences.get();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putLong(timeEventName, timeEventTimestamp);
-            writeEdits(editor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
+        getTimedEventRegistry().start(timeEventName, timeEventTimestamp);
     }
 
     public synchronized boolean isFirstIntegration(String token) {
@@ -468,7 +451,7 @@ import com.mixpanel.android.util.MPLog;
     public synchronized HashSet<Integer> getSeenCampaignIds() {
         HashSet<Integer> campaignIds = new HashSet<>();
         try {
-            SharedPreferences mpPrefs = mLoadStoredPreferences.get();
+            SharedPreferences mpPrefs = getStoredPreferences();
             String seenIds = mpPrefs.getString("seen_campaign_ids", "");
             StringTokenizer stTokenizer = new StringTokenizer(seenIds, DELIMITER);
             while (stTokenizer.hasMoreTokens()) {
@@ -484,7 +467,7 @@ import com.mixpanel.android.util.MPLog;
 
     public synchronized void saveCampaignAsSeen(Integer notificationId) {
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
+            final SharedPreferences prefs = getStoredPreferences();
             final SharedPreferences.Editor editor = prefs.edit();
             String campaignIds = prefs.getString("seen_campaign_ids", "");
             editor.putString("seen_campaign_ids", campaignIds + notificationId + DELIMITER);
@@ -511,35 +494,51 @@ import com.mixpanel.android.util.MPLog;
 
     //////////////////////////////////////////////////
 
-    // Must be called from a synchronized setting
-    private JSONObject getSuperPropertiesCache() {
-        if (mSuperPropertiesCache == null) {
-            readSuperProperties();
+    private SuperProperties getSuperProperties() {
+        final SuperProperties current = mSuperProperties;
+        if (null != current) {
+            return current;
+        }
+
+        synchronized (mSuperPropsLock) {
+            if (null == mSuperProperties) {
+                readSuperProperties();
+            }
+            return mSuperProperties;
         }
-        return mSuperPropertiesCache;
     }
 
-    // All access should be synchronized on this
+    // All access should be synchronized on mSuperPropsLock
     private void readSuperProperties() {
+        JSONObject props = null;
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
-            final String props = prefs.getString("super_properties", "{}");
-            MPLog.v(LOGTAG, "Loading Super Properties " + props);
-            mSuperPropertiesCache = new JSONObject(props);
+            final SharedPreferences prefs = getStoredPreferences();
+            final String stored = prefs.getString("super_properties", "{}");
+            MPLog.v(LOGTAG, "Loading Super Properties " + stored);
+            props = new JSONObject(stored);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e);
         } catch (final JSONException e) {
             MPLog.e(LOGTAG, "Cannot parse stored superProperties");
-            storeSuperProperties();
+            publishSuperProperties(new JSONObject());
         } finally {
-            if (mSuperPropertiesCache == null) {
-                mSuperPropertiesCache = new JSONObject();
+            if (null != props) {
+                mSuperProperties = new SuperProperties(props);
+            } else if (null == mSuperProperties) {
+                mSuperProperties = new SuperProperties(new JSONObject());
             }
         }
     }
 
+    // All access should be synchronized on mSuperPropsLock
+    private void publishSuperProperties(JSONObject props) {
+        final SuperProperties published = new SuperProperties(props);
+        mSuperProperties = published;
+        storeSuperProperties(published);
+    }
+
     // All access should be synchronized on this
     private void readReferrerProperties() {
         mReferrerPropertiesCache = new HashMap<String, String>();
@@ -562,18 +561,13 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
-    // All access should be synchronized on this
-    private void storeSuperProperties() {
-        if (mSuperPropertiesCache == null) {
-            MPLog.e(LOGTAG, "storeSuperProperties should not be called with uninitialized superPropertiesCache.");
-            return;
-        }
-
-        final String props = mSuperPropertiesCache.toString();
+    // All access should be synchronized on mSuperPropsLock
+    private void storeSuperProperties(SuperProperties superProperties) {
+        final String props = superProperties.toString();
         MPLog.v(LOGTAG, "Storing Super Properties " + props);
 
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
+            final SharedPreferences prefs = getStoredPreferences();
             final SharedPreferences.Editor editor = prefs.edit();
             editor.putString("super_properties", props);
             writeEdits(editor);
@@ -588,7 +582,7 @@ import com.mixpanel.android.util.MPLog;
     private void readIdentities() {
         SharedPreferences prefs = null;
         try {
-            prefs = mLoadStoredPreferences.get();
+            prefs = getStoredPreferences();
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot read distinct ids from sharedPreferences.", e.getCause());
         } catch (final InterruptedException e) {
@@ -612,6 +606,17 @@ import com.mixpanel.android.util.MPLog;
             writeIdentities();
         }
         mIdentitiesLoaded = true;
+        publishIdentity();
+    }
+
+    // All access should be synchronized on this
+    private Identity makeIdentity() {
+        return new Identity(mEventsDistinctId, mEventsUserIdPresent ? mEventsDistinctId : null, mAnonymousId, mHadPersistedDistinctId);
+    }
+
+    // All access should be synchronized on this
+    private void publishIdentity() {
+        mIdentity = makeIdentity();
     }
 
     private void readOptOutFlag(String token) {
@@ -670,7 +675,7 @@ import com.mixpanel.android.util.MPLog;
     // All access should be synchronized on this
     private void writeIdentities() {
         try {
-            final SharedPreferences prefs = mLoadStoredPreferences.get();
+            final SharedPreferences prefs = getStoredPreferences();
             final SharedPreferences.Editor prefsEditor = prefs.edit();
 
             prefsEditor.putString("events_distinct_id", mEventsDistinctId);
@@ -686,6 +691,96 @@ import com.mixpanel.android.util.MPLog;
         }
     }
 
+    /**
+     * The ids sent with every event, as of a single moment. Never changes once published.
+     */
+    /* package */ static class Identity {
+        public Identity(String distinctId, String userId, String anonymousId, boolean hadPersistedDistinctId) {
+            mDistinctId = distinctId;
+            mUserId = userId;
+            mAnonymousId = anonymousId;
+            mHadPersistedDistinctId = hadPersistedDistinctId;
+        }
+
+        public String getDistinctId() {
+            return mDistinctId;
+        }
+
+        /**
+         * @return the distinct id if it was set by identify, otherwise null
+         */
+        public String getUserId() {
+            return mUserId;
+        }
+
+        public String getAnonymousId() {
+            return mAnonymousId;
+        }
+
+        public boolean getHadPersistedDistinctId() {
+            return mHadPersistedDistinctId;
+        }
+
+        private final String mDistinctId;
+        private final String mUserId;
+        private final String mAnonymousId;
+        private final boolean mHadPersistedDistinctId;
+    }
+
+    /**
+     * A copy of the super properties that never changes, flattened into arrays so it can be
+     * copied into each event without iterating a JSONObject, and serialized once for storage.
+     */
+    private static class SuperProperties {
+        public SuperProperties(JSONObject properties) {
+            final int length = properties.length();
+            mKeys = new String[length];
+            mValues = new Object[length];
+            int i = 0;
+            for (final Iterator<String> keys = properties.keys(); keys.hasNext() && i < length; i++) {
+                final String key = keys.next();
+                mKeys[i] = key;
+                mValues[i] = properties.opt(key);
+            }
+            mSerialized = properties.toString();
+        }
+
+        public void putInto(JSONObject ob) {
+            for (int i = 0; i < mKeys.length; i++) {
+                try {
+                    ob.put(mKeys[i], mValues[i]);
+                } catch (JSONException e) {
+                    MPLog.e(LOGTAG, "Object read from one JSON Object cannot be written to another", e);
+                }
+            }
+        }
+
+        public JSONObject toJSON() {
+            final JSONObject ret = new JSONObject();
+            putInto(ret);
+            return ret;
+        }
+
+        @Override
+        public String toString() {
+            return mSerialized;
+        }
+
+        private final String[] mKeys;
+        private final Object[] mValues;
+        private final String mSerialized;
+    }
+
+    // The stored and time events preferences are only used through the write-behind layer, so
+    // every read sees the changes still waiting to be written
+    private SharedPreferences getStoredPreferences() throws ExecutionException, InterruptedException {
+        return WriteBehindPreferences.getInstance(mLoadStoredPreferences.get(), mWriteIntervalMillis);
+    }
+
+    private SharedPreferences getTimeEventsPreferences() throws ExecutionException, InterruptedException {
+        return WriteBehindPreferences.getInstance(mTimeEventsPreferences.get(), mWriteIntervalMillis);
+    }
+
     private static void writeEdits(final SharedPreferences.Editor editor) {
         editor.apply();
     }
@@ -694,10 +789,14 @@ import com.mixpanel.android.util.MPLog;
     private final Future<SharedPreferences> mLoadReferrerPreferences;
     private final Future<SharedPreferences> mTimeEventsPreferences;
     private final Future<SharedPreferences> mMixpanelPreferences;
+    private final long mWriteIntervalMillis;
+    private TimedEventRegistry mTimedEventRegistry;
+    private final Object mTimedEventsLock = new Object();
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
-    private JSONObject mSuperPropertiesCache;
-    private Object mSuperPropsLock = new Object();
+    private volatile SuperProperties mSuperProperties;
+    private final Object mSuperPropsLock = new Object();
     private Map<String, String> mReferrerPropertiesCache;
+    private volatile Identity mIdentity;
     private boolean mIdentitiesLoaded;
     private String mEventsDistinctId;
     private boolean mEventsUserIdPresent;
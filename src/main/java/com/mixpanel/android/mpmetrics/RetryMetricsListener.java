@@ -0,0 +1,25 @@
+package com.mixpanel.android.mpmetrics;
+
+/**
+ * Receives the retry timing of Mixpanel uploads, for monitoring. Methods are called on the
+ * Mixpanel worker thread, and should return quickly.
+ */
+public interface RetryMetricsListener {
+    /**
+     * Called when an upload fails and the endpoint is backed off.
+     *
+     * @param token the project the upload was for
+     * @param endpoint the URL of the endpoint
+     * @param consecutiveFailures failures in a row for this project and endpoint, including this one
+     * @param delayMillis how long until the next attempt
+     * @param retryAfterMillis the delay the server asked for, or 0 if it didn't ask
+     */
+    void onRetryScheduled(String token, String endpoint, int consecutiveFailures, long delayMillis, long retryAfterMillis);
+
+    /**
+     * Called when an upload succeeds to an endpoint that had been backed off.
+     *
+     * @param failures the number of consecutive failures before the success
+     */
+    void onRecovered(String token, String endpoint, int failures);
+}
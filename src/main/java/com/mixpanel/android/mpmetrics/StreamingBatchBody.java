@@ -0,0 +1,149 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import com.mixpanel.android.util.BufferedRequestBody;
+import com.mixpanel.android.util.RemoteService;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A request body that reads a batch of rows from the database as it is written to the connection,
+ * so only a few small buffers of the batch are ever in memory at once.
+ *
+ * <p>The batch is sent either as a base64 encoded "data" form field, like a batch from
+ * generateDataString, or as gzip-compressed JSON. Bodies may be written more than once, and read
+ * the same rows each time, as long as the rows haven't been deleted in between.
+ *
+ * <p>Not thread safe. Like the MPDbAdapter it reads from, instances should only be used by the worker thread.
+ */
+/* package */ class StreamingBatchBody implements RemoteService.RequestBody {
+
+    public StreamingBatchBody(MPDbAdapter dbAdapter, MPDbAdapter.Table table, String token, boolean includeAutomaticEvents,
+                              String afterId, String lastId, boolean gzip, boolean verbose) {
+        mDbAdapter = dbAdapter;
+        mTable = table;
+        mToken = token;
+        mIncludeAutomaticEvents = includeAutomaticEvents;
+        mAfterId = afterId;
+        mLastId = lastId;
+        mGzip = gzip;
+        mVerbose = verbose;
+    }
+
+    @Override
+    public String getContentType() {
+        return mGzip ? BufferedRequestBody.JSON_CONTENT_TYPE : BufferedRequestBody.FORM_CONTENT_TYPE;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return mGzip ? BufferedRequestBody.GZIP_CONTENT_ENCODING : null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final OutputStream encoded;
+        if (mGzip) {
+            encoded = new GZIPOutputStream(new UnclosedOutputStream(out), BUFFER_BYTES);
+        } else {
+            out.write(DATA_FIELD);
+            encoded = new Base64OutputStream(new FormEscapingOutputStream(out), Base64.NO_WRAP);
+        }
+
+        // Closing the writer finishes the encoding, but leaves out open for the caller
+        final Writer writer = new OutputStreamWriter(encoded, "UTF-8");
+        try {
+            mDbAdapter.writeBatch(mTable, mToken, mIncludeAutomaticEvents, mAfterId, mLastId, writer);
+        } finally {
+            writer.close();
+        }
+
+        if (!mGzip && mVerbose) {
+            out.write(VERBOSE_FIELD);
+        }
+    }
+
+    // Passes writes through to out, but not close()
+    private static class UnclosedOutputStream extends FilterOutputStream {
+        public UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // Escapes the characters base64 uses that aren't safe in a form value, as Uri.Builder would
+    private static class FormEscapingOutputStream extends UnclosedOutputStream {
+        public FormEscapingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            switch (b) {
+                case '+':
+                    out.write(ESCAPED_PLUS);
+                    break;
+                case '/':
+                    out.write(ESCAPED_SLASH);
+                    break;
+                case '=':
+                    out.write(ESCAPED_EQUALS);
+                    break;
+                default:
+                    out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            int start = offset;
+            final int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                final byte b = buffer[i];
+                if (b == '+' || b == '/' || b == '=') {
+                    out.write(buffer, start, i - start);
+                    write(b);
+                    start = i + 1;
+                }
+            }
+            out.write(buffer, start, end - start);
+        }
+    }
+
+    private final MPDbAdapter mDbAdapter;
+    private final MPDbAdapter.Table mTable;
+    private final String mToken;
+    private final boolean mIncludeAutomaticEvents;
+    private final String mAfterId;
+    private final String mLastId;
+    private final boolean mGzip;
+    private final boolean mVerbose;
+
+    private static final int BUFFER_BYTES = 8192;
+    private static final byte[] DATA_FIELD = { 'd', 'a', 't', 'a', '=' };
+    private static final byte[] VERBOSE_FIELD = { '&', 'v', 'e', 'r', 'b', 'o', 's', 'e', '=', '1' };
+    private static final byte[] ESCAPED_PLUS = { '%', '2', 'B' };
+    private static final byte[] ESCAPED_SLASH = { '%', '2', 'F' };
+    private static final byte[] ESCAPED_EQUALS = { '%', '3', 'D' };
+}
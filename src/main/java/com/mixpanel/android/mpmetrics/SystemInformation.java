@@ -19,6 +19,7 @@ import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.WindowManager;
 
+import com.mixpanel.android.util.ConnectivityMonitor;
 import com.mixpanel.android.util.MPLog;
 
 /**
@@ -86,10 +87,16 @@ import com.mixpanel.android.util.MPLog;
 
         mHasNFC = foundNFC;
         mHasTelephony = foundTelephony;
-        mDisplayMetrics = new DisplayMetrics();
-
-        Display display = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-        display.getMetrics(mDisplayMetrics);
+        mDisplayMetrics = readDisplayMetrics(mContext);
+
+        mConnectivityMonitor = ConnectivityMonitor.getInstance(mContext);
+        mConnectivityMonitor.addListener(new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor monitor, boolean reconnected) {
+                // The radio technology usually changes along with the connection
+                mRadioTypeKnown = false;
+            }
+        });
     }
 
     public String getAppVersionName() { return mAppVersionName; }
@@ -104,9 +111,38 @@ import com.mixpanel.android.util.MPLog;
 
     public DisplayMetrics getDisplayMetrics() { return mDisplayMetrics; }
 
+    /**
+     * Reads the display metrics again, since they change with the configuration.
+     */
+    public void refreshDisplayMetrics() {
+        mDisplayMetrics = readDisplayMetrics(mContext);
+    }
+
+    private static DisplayMetrics readDisplayMetrics(Context context) {
+        final DisplayMetrics ret = new DisplayMetrics();
+        final Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+        display.getMetrics(ret);
+        return ret;
+    }
+
     @SuppressLint("MissingPermission")
     @SuppressWarnings("MissingPermission")
     public String getPhoneRadioType(Context context) {
+        if (mRadioTypeKnown) {
+            return mRadioType;
+        }
+
+        // Only cached while connectivity is watched, and marked before reading so a change
+        // reported while we read makes the next call read again
+        mRadioTypeKnown = null != mConnectivityMonitor.isOnline();
+        final String radioType = readPhoneRadioType(context);
+        mRadioType = radioType;
+        return radioType;
+    }
+
+    @SuppressLint("MissingPermission")
+    @SuppressWarnings("MissingPermission")
+    private String readPhoneRadioType(Context context) {
         final PackageManager packageManager = context.getPackageManager();
         final String packageName = context.getPackageName();
 
@@ -167,7 +203,10 @@ import com.mixpanel.android.util.MPLog;
     @SuppressLint("MissingPermission")
     @SuppressWarnings("MissingPermission")
     public Boolean isWifiConnected() {
-        Boolean ret = null;
+        Boolean ret = mConnectivityMonitor.isWifiConnected();
+        if (null != ret) {
+            return ret;
+        }
 
         if (PackageManager.PERMISSION_GRANTED == mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
             ConnectivityManager connManager = (ConnectivityManager) this.mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -213,11 +252,18 @@ import com.mixpanel.android.util.MPLog;
     }
 
     private final Context mContext;
+    private final ConnectivityMonitor mConnectivityMonitor;
+
+    // Read again when the configuration changes
+    private volatile DisplayMetrics mDisplayMetrics;
+
+    // Cached until the connection changes
+    private volatile String mRadioType;
+    private volatile boolean mRadioTypeKnown;
 
     // Unchanging facts
     private final Boolean mHasNFC;
     private final Boolean mHasTelephony;
-    private final DisplayMetrics mDisplayMetrics;
     private final String mAppVersionName;
     private final Integer mAppVersionCode;
     private final String mAppName;
@@ -0,0 +1,143 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.SharedPreferences;
+
+import com.mixpanel.android.util.MPLog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The start times of events being timed with {@link MixpanelAPI#timeEvent(String)}, by event name.
+ * Starting, reading and ending a timing never locks, so apps can time many short operations from
+ * many threads at once. Changes are written to the time events preferences on a background thread,
+ * only for the names that changed since the last write, and all of them with a single editor.
+ *
+ * <p>Thread safe.
+ */
+/* package */ class TimedEventRegistry {
+
+    public TimedEventRegistry(SharedPreferences preferences) {
+        mPreferences = preferences;
+        mStartTimes = new ConcurrentHashMap<String, Long>();
+        mDirty = new ConcurrentHashMap<String, Boolean>();
+        mPersistScheduled = new AtomicBoolean(false);
+        mPersistLock = new Object();
+
+        for (final Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            try {
+                mStartTimes.put(entry.getKey(), Long.valueOf(entry.getValue().toString()));
+            } catch (final NumberFormatException e) {
+                MPLog.w(LOGTAG, "Ignoring unreadable start time for timed event " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Starts timing eventName, replacing any timing already started for it.
+     */
+    public void start(String eventName, long startTimeMillis) {
+        mStartTimes.put(eventName, startTimeMillis);
+        markDirty(eventName);
+    }
+
+    /**
+     * @return the time eventName was started, or null if it isn't being timed
+     */
+    public Long get(String eventName) {
+        return mStartTimes.get(eventName);
+    }
+
+    /**
+     * Stops timing eventName.
+     *
+     * @return the time eventName was started, or null if it wasn't being timed
+     */
+    public Long remove(String eventName) {
+        final Long ret = mStartTimes.remove(eventName);
+        if (null != ret) {
+            markDirty(eventName);
+        }
+        return ret;
+    }
+
+    /**
+     * @return a copy of every start time, by event name
+     */
+    public Map<String, Long> getAll() {
+        return new HashMap<String, Long>(mStartTimes);
+    }
+
+    /**
+     * Stops timing every event, and removes them from the preferences right away.
+     */
+    public void clear() {
+        synchronized (mPersistLock) {
+            mStartTimes.clear();
+            mDirty.clear();
+            final SharedPreferences.Editor editor = mPreferences.edit();
+            editor.clear();
+            editor.apply();
+        }
+    }
+
+    /**
+     * Writes the timings changed since the last write, on the calling thread.
+     */
+    public void persist() {
+        synchronized (mPersistLock) {
+            mPersistScheduled.set(false);
+            if (mDirty.isEmpty()) {
+                return;
+            }
+
+            final SharedPreferences.Editor editor = mPreferences.edit();
+            for (final String eventName : mDirty.keySet()) {
+                // Unmarked before reading, so a change made meanwhile marks it again for the next write
+                mDirty.remove(eventName);
+                final Long startTime = mStartTimes.get(eventName);
+                if (null == startTime) {
+                    editor.remove(eventName);
+                } else {
+                    editor.putLong(eventName, startTime);
+                }
+            }
+            editor.apply();
+        }
+    }
+
+    private void markDirty(String eventName) {
+        mDirty.put(eventName, Boolean.TRUE);
+        if (mPersistScheduled.compareAndSet(false, true)) {
+            sPersister.execute(new Runnable() {
+                @Override
+                public void run() {
+                    persist();
+                }
+            });
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+    private final ConcurrentHashMap<String, Long> mStartTimes;
+    private final ConcurrentHashMap<String, Boolean> mDirty; // names changed since the last write
+    private final AtomicBoolean mPersistScheduled;
+    private final Object mPersistLock;
+
+    private static final ThreadPoolExecutor sPersister = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "com.mixpanel.android.TimedEventPersister");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final String LOGTAG = "MixpanelAPI.TimedEvents";
+}
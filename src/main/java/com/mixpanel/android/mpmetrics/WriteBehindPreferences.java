@@ -0,0 +1,354 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.SharedPreferences;
+
+import com.mixpanel.android.util.MPLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SharedPreferences that hold changes in memory for up to an interval, then write every key changed
+ * meanwhile with a single editor. Apps that register super properties on every screen would
+ * otherwise rewrite the whole preferences file for each call. Reads see pending changes.
+ *
+ * <p>There is a single instance for each underlying SharedPreferences, so every MixpanelAPI using
+ * the same file sees the same pending changes. Pending changes are written when the app goes to the
+ * background, with {@link #flushAll()}, and written synchronously if a thread dies with an uncaught
+ * exception. With an interval of 0 every change is written immediately.
+ *
+ * <p>Thread safe.
+ */
+/* package */ class WriteBehindPreferences implements SharedPreferences {
+
+    /* package */ static WriteBehindPreferences getInstance(SharedPreferences preferences, long writeIntervalMillis) {
+        synchronized (sInstances) {
+            WriteBehindPreferences ret = sInstances.get(preferences);
+            if (null == ret) {
+                ret = new WriteBehindPreferences(preferences, writeIntervalMillis);
+                sInstances.put(preferences, ret);
+                if (writeIntervalMillis > 0) {
+                    installCrashHandler();
+                }
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Starts writing the pending changes of every instance.
+     */
+    /* package */ static void flushAll() {
+        for (final WriteBehindPreferences preferences : getInstances()) {
+            preferences.flush(false);
+        }
+    }
+
+    /**
+     * Writes the pending changes of every instance, returning once they're on disk.
+     */
+    /* package */ static void commitAll() {
+        for (final WriteBehindPreferences preferences : getInstances()) {
+            preferences.flush(true);
+        }
+    }
+
+    private WriteBehindPreferences(SharedPreferences preferences, long writeIntervalMillis) {
+        mPreferences = preferences;
+        mWriteIntervalMillis = writeIntervalMillis;
+        mPending = new HashMap<String, Object>();
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        final Map<String, Object> ret = new HashMap<String, Object>();
+        if (!mCleared) {
+            ret.putAll(mPreferences.getAll());
+        }
+        for (final Map.Entry<String, Object> entry : mPending.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                ret.remove(entry.getKey());
+            } else {
+                ret.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        final Object value = getPending(key);
+        if (value == NOT_PENDING) {
+            return mPreferences.getString(key, defValue);
+        }
+        return value == REMOVED ? defValue : (String) value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        final Object value = getPending(key);
+        if (value == NOT_PENDING) {
+            return mPreferences.getStringSet(key, defValues);
+        }
+        return value == REMOVED ? defValues : (Set<String>) value;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        final Object value = getPending(key);
+        if (value == NOT_PENDING) {
+            return mPreferences.getInt(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Integer) value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        final Object value = getPending(key);
+        if (value == NOT_PENDING) {
+            return mPreferences.getLong(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Long) value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        final Object value = getPending(key);
+        if (value == NOT_PENDING) {
+            return mPreferences.getFloat(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Float) value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        final Object value = getPending(key);
+        if (value == NOT_PENDING) {
+            return mPreferences.getBoolean(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Boolean) value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        final Object value = getPending(key);
+        if (value == NOT_PENDING) {
+            return mPreferences.contains(key);
+        }
+        return value != REMOVED;
+    }
+
+    @Override
+    public Editor edit() {
+        return new PendingEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mPreferences.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    // Returns the pending value for key, REMOVED, or NOT_PENDING if the stored value is current
+    private synchronized Object getPending(String key) {
+        final Object value = mPending.get(key);
+        if (null != value) {
+            return value;
+        }
+        return mCleared ? REMOVED : NOT_PENDING;
+    }
+
+    private void onEdited(boolean clear, Map<String, Object> changes, boolean commit) {
+        synchronized (this) {
+            if (clear) {
+                mCleared = true;
+                mPending.clear();
+            }
+            mPending.putAll(changes);
+
+            if (!commit && mWriteIntervalMillis > 0) {
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    sWriter.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush(false);
+                        }
+                    }, mWriteIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush(commit);
+    }
+
+    // Writes every pending change with one editor. Synchronized so a later write can't reach the
+    // underlying preferences before an earlier one.
+    @SuppressWarnings("unchecked")
+    private synchronized void flush(boolean commit) {
+        mFlushScheduled = false;
+        if (!mCleared && mPending.isEmpty()) {
+            return;
+        }
+
+        final Editor editor = mPreferences.edit();
+        if (mCleared) {
+            editor.clear();
+        }
+        for (final Map.Entry<String, Object> entry : mPending.entrySet()) {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            if (value == REMOVED) {
+                editor.remove(key);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof Set) {
+                editor.putStringSet(key, (Set<String>) value);
+            }
+        }
+        mCleared = false;
+        mPending.clear();
+
+        if (commit) {
+            if (!editor.commit()) {
+                MPLog.w(LOGTAG, "Could not write Mixpanel preferences.");
+            }
+        } else {
+            editor.apply();
+        }
+    }
+
+    private static List<WriteBehindPreferences> getInstances() {
+        synchronized (sInstances) {
+            return new ArrayList<WriteBehindPreferences>(sInstances.values());
+        }
+    }
+
+    // Called with sInstances held
+    private static void installCrashHandler() {
+        if (sCrashHandlerInstalled) {
+            return;
+        }
+        sCrashHandlerInstalled = true;
+
+        final Thread.UncaughtExceptionHandler previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                try {
+                    commitAll();
+                } catch (final RuntimeException writeFailure) {
+                    MPLog.e(LOGTAG, "Could not write Mixpanel preferences before crashing.", writeFailure);
+                }
+                if (null != previousHandler) {
+                    previousHandler.uncaughtException(t, e);
+                }
+            }
+        });
+    }
+
+    private class PendingEditor implements Editor {
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, null == values ? null : new HashSet<String>(values));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, REMOVED);
+        }
+
+        @Override
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            onEdited(mClear, mChanges, true);
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            onEdited(mClear, mChanges, false);
+        }
+
+        // As with SharedPreferences, putting null is the same as removing
+        private Editor put(String key, Object value) {
+            mChanges.put(key, null == value ? REMOVED : value);
+            return this;
+        }
+
+        private boolean mClear;
+        private final Map<String, Object> mChanges = new HashMap<String, Object>();
+    }
+
+    private final SharedPreferences mPreferences;
+    private final long mWriteIntervalMillis;
+    private final Map<String, Object> mPending; // by key, REMOVED for removed keys
+    private boolean mCleared; // everything not in mPending was removed
+    private boolean mFlushScheduled;
+
+    private static final Object REMOVED = new Object();
+    private static final Object NOT_PENDING = new Object();
+
+    private static final Map<SharedPreferences, WriteBehindPreferences> sInstances = new HashMap<SharedPreferences, WriteBehindPreferences>();
+    private static boolean sCrashHandlerInstalled;
+    private static final ScheduledThreadPoolExecutor sWriter = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "com.mixpanel.android.PreferencesWriter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final String LOGTAG = "MixpanelAPI.WriteBehind";
+}
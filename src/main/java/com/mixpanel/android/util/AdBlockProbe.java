@@ -0,0 +1,121 @@
+package com.mixpanel.android.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.net.InetAddress;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finds out whether an ad blocker resolves the Mixpanel hosts to a local address, which makes
+ * every request fail. The lookups are blocking, so they run on a background thread, starting with
+ * the first connectivity check, at most once an hour and again when the network changes. Callers
+ * only ever read the last result.
+ */
+/* package */ class AdBlockProbe {
+
+    /* package */ static AdBlockProbe getInstance() {
+        return sInstance;
+    }
+
+    private AdBlockProbe() {
+        mProbing = new AtomicBoolean(false);
+        mWatching = new AtomicBoolean(false);
+        mLastProbeMillis = -1;
+        mExecutor = new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "com.mixpanel.android.AdBlockProbe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return true if the last probe found the Mixpanel hosts blocked. Never blocks.
+     */
+    public boolean isBlocked() {
+        return mBlocked;
+    }
+
+    /**
+     * Starts a probe in the background, unless one is running or the last one is recent.
+     */
+    public void probe() {
+        final long lastProbeMillis = mLastProbeMillis;
+        if (lastProbeMillis >= 0 && SystemClock.elapsedRealtime() - lastProbeMillis < MAX_AGE_MILLIS) {
+            return;
+        }
+        startProbe();
+    }
+
+    /**
+     * Probes again when the device reconnects, or moves between wifi and another network, since a
+     * different network may resolve differently. Other connectivity callbacks, such as signal or
+     * validation changes on the same network, don't probe. Only the first call registers.
+     */
+    public void watchConnectivity(Context context) {
+        if (!mWatching.compareAndSet(false, true)) {
+            return;
+        }
+        final ConnectivityMonitor connectivityMonitor = ConnectivityMonitor.getInstance(context);
+        mLastWifi = connectivityMonitor.isWifiConnected();
+        connectivityMonitor.addListener(new ConnectivityMonitor.Listener() {
+            @Override
+            public void onConnectivityChanged(ConnectivityMonitor monitor, boolean reconnected) {
+                final Boolean isWifi = monitor.isWifiConnected();
+                final boolean networkChanged = null != isWifi && !isWifi.equals(mLastWifi);
+                mLastWifi = isWifi;
+                if (reconnected || networkChanged) {
+                    startProbe();
+                }
+            }
+        });
+    }
+
+    private void startProbe() {
+        if (!mProbing.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final InetAddress apiMixpanelInet = InetAddress.getByName("api.mixpanel.com");
+                    final InetAddress decideMixpanelInet = InetAddress.getByName("decide.mixpanel.com");
+                    final boolean blocked = apiMixpanelInet.isLoopbackAddress() ||
+                            apiMixpanelInet.isAnyLocalAddress() ||
+                            decideMixpanelInet.isLoopbackAddress() ||
+                            decideMixpanelInet.isAnyLocalAddress();
+                    if (blocked) {
+                        MPLog.v(LOGTAG, "AdBlocker is enabled. Won't be able to use Mixpanel services.");
+                    }
+                    mBlocked = blocked;
+                    mLastProbeMillis = SystemClock.elapsedRealtime();
+                } catch (Exception e) {
+                    // Couldn't resolve, most likely offline. Keep the last result and probe again next time.
+                } finally {
+                    mProbing.set(false);
+                }
+            }
+        });
+    }
+
+    private final AtomicBoolean mProbing;
+    private final AtomicBoolean mWatching;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile boolean mBlocked;
+    private volatile long mLastProbeMillis;
+    private volatile Boolean mLastWifi; // as of the last connectivity callback
+
+    private static final AdBlockProbe sInstance = new AdBlockProbe();
+
+    private static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final String LOGTAG = "MixpanelAPI.Message";
+}
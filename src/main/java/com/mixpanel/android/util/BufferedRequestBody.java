@@ -0,0 +1,83 @@
+package com.mixpanel.android.util;
+
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A request body that is encoded in full before it is sent. For internal use in the Mixpanel library.
+ */
+public class BufferedRequestBody implements RemoteService.RequestBody {
+
+    public BufferedRequestBody(String contentType, String contentEncoding, byte[] content) {
+        mContentType = contentType;
+        mContentEncoding = contentEncoding;
+        mContent = content;
+    }
+
+    /**
+     * @return params as an application/x-www-form-urlencoded body
+     */
+    public static BufferedRequestBody form(Map<String, Object> params) {
+        final Uri.Builder builder = new Uri.Builder();
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            builder.appendQueryParameter(param.getKey(), param.getValue().toString());
+        }
+        final String query = builder.build().getEncodedQuery();
+        return new BufferedRequestBody(FORM_CONTENT_TYPE, null, utf8Bytes(query));
+    }
+
+    /**
+     * @return json, compressed as a gzip application/json body
+     */
+    public static BufferedRequestBody gzipJson(String json) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length() / 4);
+        final GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        try {
+            gzip.write(utf8Bytes(json));
+        } finally {
+            gzip.close();
+        }
+        return new BufferedRequestBody(JSON_CONTENT_TYPE, GZIP_CONTENT_ENCODING, buffer.toByteArray());
+    }
+
+    @Override
+    public String getContentType() {
+        return mContentType;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return mContentEncoding;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mContent.length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mContent);
+    }
+
+    private static byte[] utf8Bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (final java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+
+    private final String mContentType;
+    private final String mContentEncoding;
+    private final byte[] mContent;
+
+    public static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    public static final String JSON_CONTENT_TYPE = "application/json";
+    public static final String GZIP_CONTENT_ENCODING = "gzip";
+}
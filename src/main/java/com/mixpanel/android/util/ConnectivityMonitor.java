@@ -0,0 +1,235 @@
+package com.mixpanel.android.util;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the state of the device's network connection up to date as the system reports changes,
+ * so it can be read on every event or flush without asking ConnectivityManager again.
+ *
+ * <p>There is one monitor per process. It only watches the network if the app holds the
+ * ACCESS_NETWORK_STATE permission. Otherwise its getters return null, and callers should fall
+ * back to asking the system themselves.
+ */
+public class ConnectivityMonitor {
+
+    /**
+     * Called on a system thread whenever the state of the connection may have changed.
+     */
+    public interface Listener {
+        /**
+         * @param monitor the monitor, which already holds the new state
+         * @param reconnected true if the device has a connection again after having none
+         */
+        void onConnectivityChanged(ConnectivityMonitor monitor, boolean reconnected);
+    }
+
+    /**
+     * Called on a system thread when the radio of the default network goes into its high power
+     * state, so data sent now doesn't cost an extra wake up. Only reported from API 21 on.
+     */
+    public interface NetworkActiveListener {
+        void onNetworkActive(ConnectivityMonitor monitor);
+    }
+
+    public static ConnectivityMonitor getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new ConnectivityMonitor(null == appContext ? context : appContext);
+                sInstance.start();
+            }
+        }
+
+        return sInstance;
+    }
+
+    private ConnectivityMonitor(Context context) {
+        mContext = context;
+        mListeners = new CopyOnWriteArrayList<Listener>();
+        mNetworkActiveListeners = new CopyOnWriteArrayList<NetworkActiveListener>();
+    }
+
+    /**
+     * @return false if the system says the device isn't connected, true if it is or if there is
+     * no default network to ask about, or null if the connection isn't being watched
+     */
+    public Boolean isOnline() {
+        return mMonitoring ? mOnline : null;
+    }
+
+    /**
+     * @return whether the device is connected through wifi, or null if the connection isn't being watched
+     */
+    public Boolean isWifiConnected() {
+        return mMonitoring ? mWifiConnected : null;
+    }
+
+    /**
+     * @return whether the system considers the connection metered, or null if the connection isn't being watched
+     */
+    public Boolean isMetered() {
+        return mMonitoring ? mMetered : null;
+    }
+
+    /**
+     * @return whether the radio of the default network is in its high power state, or null if
+     * that isn't known
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public Boolean isDefaultNetworkActive() {
+        final ConnectivityManager cm = mConnectivityManager;
+        if (!mMonitoring || null == cm || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        try {
+            return cm.isDefaultNetworkActive();
+        } catch (final RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public void addNetworkActiveListener(NetworkActiveListener listener) {
+        mNetworkActiveListeners.add(listener);
+    }
+
+    public void removeNetworkActiveListener(NetworkActiveListener listener) {
+        mNetworkActiveListeners.remove(listener);
+    }
+
+    @SuppressLint("MissingPermission")
+    @SuppressWarnings("MissingPermission")
+    private void start() {
+        if (PackageManager.PERMISSION_GRANTED != mContext.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)) {
+            MPLog.v(LOGTAG, "Permission ACCESS_NETWORK_STATE not granted, connectivity will be checked on demand.");
+            return;
+        }
+
+        final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (null == cm) {
+            return;
+        }
+
+        mConnectivityManager = cm;
+        try {
+            refresh(cm);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                registerNetworkCallback(cm);
+            } else {
+                mContext.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        refresh(cm);
+                    }
+                }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+            mMonitoring = true;
+        } catch (final RuntimeException e) {
+            // Some devices throw SecurityException, or refuse more callbacks, despite the permission
+            MPLog.w(LOGTAG, "Could not watch for connectivity changes, connectivity will be checked on demand.", e);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @SuppressLint("MissingPermission")
+    @SuppressWarnings("MissingPermission")
+    private void registerNetworkCallback(final ConnectivityManager cm) {
+        final NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        cm.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                refresh(cm);
+            }
+
+            @Override
+            public void onLost(Network network) {
+                refresh(cm);
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                refresh(cm);
+            }
+        });
+        cm.addDefaultNetworkActiveListener(new ConnectivityManager.OnNetworkActiveListener() {
+            @Override
+            public void onNetworkActive() {
+                for (NetworkActiveListener listener : mNetworkActiveListeners) {
+                    listener.onNetworkActive(ConnectivityMonitor.this);
+                }
+            }
+        });
+    }
+
+    // Synchronized so callbacks arriving together publish their results in order
+    @SuppressLint("MissingPermission")
+    @SuppressWarnings("MissingPermission")
+    private synchronized void refresh(ConnectivityManager cm) {
+        boolean connected;
+        try {
+            final NetworkInfo netInfo = cm.getActiveNetworkInfo();
+            // Matches HttpService.isOnline, which can't be certain we're offline without a default network
+            mOnline = null == netInfo || netInfo.isConnectedOrConnecting();
+            connected = null != netInfo && netInfo.isConnected();
+            mWifiConnected = connected && netInfo.getType() == ConnectivityManager.TYPE_WIFI;
+            mMetered = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && cm.isActiveNetworkMetered();
+        } catch (final SecurityException e) {
+            MPLog.v(LOGTAG, "Don't have permission to check connectivity, will assume we are online");
+            mOnline = true;
+            connected = true;
+        }
+
+        final boolean reconnected = mHasChecked && !mConnected && connected;
+        mConnected = connected;
+        mHasChecked = true;
+        if (reconnected) {
+            MPLog.v(LOGTAG, "Connectivity is back");
+        }
+
+        for (Listener listener : mListeners) {
+            listener.onConnectivityChanged(this, reconnected);
+        }
+    }
+
+    private final Context mContext;
+    private final List<Listener> mListeners;
+    private final List<NetworkActiveListener> mNetworkActiveListeners;
+    private volatile ConnectivityManager mConnectivityManager;
+    private volatile boolean mMonitoring;
+    private volatile boolean mOnline;
+    private volatile boolean mWifiConnected;
+    private volatile boolean mMetered;
+    // Only touched in refresh()
+    private boolean mConnected;
+    private boolean mHasChecked;
+
+    private static ConnectivityMonitor sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    private static final String LOGTAG = "MixpanelAPI.Connectivity";
+}
@@ -4,7 +4,6 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
@@ -13,7 +12,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
 import java.net.URL;
 import java.util.Map;
 
@@ -23,41 +21,32 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * An HTTP utility class for internal use in the Mixpanel library. Not thread-safe.
  */
-public class HttpService implements RemoteService {
+public class HttpService implements StreamingRemoteService {
 
-    private static boolean sIsMixpanelBlocked;
     private static final int MIN_UNAVAILABLE_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_INTERNAL_ERROR;
     private static final int MAX_UNAVAILABLE_HTTP_RESPONSE_CODE = 599;
 
+    @Deprecated
     @Override
     public void checkIsMixpanelBlocked() {
-        Thread t = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    InetAddress apiMixpanelInet = InetAddress.getByName("api.mixpanel.com");
-                    InetAddress decideMixpanelInet = InetAddress.getByName("decide.mixpanel.com");
-                    sIsMixpanelBlocked = apiMixpanelInet.isLoopbackAddress() ||
-                            apiMixpanelInet.isAnyLocalAddress() ||
-                            decideMixpanelInet.isLoopbackAddress() ||
-                            decideMixpanelInet.isAnyLocalAddress();
-                    if (sIsMixpanelBlocked) {
-                        MPLog.v(LOGTAG, "AdBlocker is enabled. Won't be able to use Mixpanel services.");
-                    }
-                } catch (Exception e) {
-                }
-            }
-        });
-
-        t.start();
+        AdBlockProbe.getInstance().probe();
     }
 
     @SuppressLint("MissingPermission")
     @SuppressWarnings("MissingPermission")
     @Override
     public boolean isOnline(Context context, OfflineMode offlineMode) {
-        if (sIsMixpanelBlocked) return false;
+        final AdBlockProbe adBlockProbe = AdBlockProbe.getInstance();
+        adBlockProbe.watchConnectivity(context);
+        adBlockProbe.probe();
+        if (adBlockProbe.isBlocked()) return false;
         if (onOfflineMode(offlineMode)) return false;
 
+        final Boolean monitoredOnline = ConnectivityMonitor.getInstance(context).isOnline();
+        if (null != monitoredOnline) {
+            return monitoredOnline;
+        }
+
         boolean isOnline;
         try {
             final ConnectivityManager cm =
@@ -92,6 +81,16 @@ public class HttpService implements RemoteService {
 
     @Override
     public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
+        final RequestBody body = null == params ? null : BufferedRequestBody.form(params);
+        return sendRequest(endpointUrl, body, socketFactory);
+    }
+
+    @Override
+    public byte[] postRequest(String endpointUrl, RequestBody body, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
+        return sendRequest(endpointUrl, body, socketFactory);
+    }
+
+    private byte[] sendRequest(String endpointUrl, RequestBody body, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
         MPLog.v(LOGTAG, "Attempting request to " + endpointUrl);
 
         byte[] response = null;
@@ -104,37 +103,12 @@ public class HttpService implements RemoteService {
         boolean succeeded = false;
         while (retries < 3 && !succeeded) {
             InputStream in = null;
-            OutputStream out = null;
-            BufferedOutputStream bout = null;
             HttpURLConnection connection = null;
 
             try {
-                final URL url = new URL(endpointUrl);
-                connection = (HttpURLConnection) url.openConnection();
-                if (null != socketFactory && connection instanceof HttpsURLConnection) {
-                    ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
-                }
-
-                connection.setConnectTimeout(2000);
-                connection.setReadTimeout(30000);
-                if (null != params) {
-                    Uri.Builder builder = new Uri.Builder();
-                    for (Map.Entry<String, Object> param : params.entrySet()) {
-                        builder.appendQueryParameter(param.getKey(), param.getValue().toString());
-                    }
-                    String query = builder.build().getEncodedQuery();
-
-                    connection.setFixedLengthStreamingMode(query.getBytes().length);
-                    connection.setDoOutput(true);
-                    connection.setRequestMethod("POST");
-                    out = connection.getOutputStream();
-                    bout = new BufferedOutputStream(out);
-                    bout.write(query.getBytes("UTF-8"));
-                    bout.flush();
-                    bout.close();
-                    bout = null;
-                    out.close();
-                    out = null;
+                connection = openConnection(endpointUrl, socketFactory);
+                if (null != body) {
+                    writeBody(connection, body);
                 }
                 in = connection.getInputStream();
                 response = slurp(in);
@@ -145,17 +119,16 @@ public class HttpService implements RemoteService {
                 MPLog.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
                 retries = retries + 1;
             } catch (final IOException e) {
-                if (connection != null && connection.getResponseCode() >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && connection.getResponseCode() <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) {
+                final int responseCode = connection == null ? -1 : connection.getResponseCode();
+                if (isServiceUnavailable(responseCode)) {
                     throw new ServiceUnavailableException("Service Unavailable", connection.getHeaderField("Retry-After"));
+                } else if (isRejectedRequest(responseCode)) {
+                    throw new ClientErrorException(responseCode, e);
                 } else {
                     throw e;
                 }
             }
             finally {
-                if (null != bout)
-                    try { bout.close(); } catch (final IOException e) { ; }
-                if (null != out)
-                    try { out.close(); } catch (final IOException e) { ; }
                 if (null != in)
                     try { in.close(); } catch (final IOException e) { ; }
                 if (null != connection)
@@ -168,7 +141,61 @@ public class HttpService implements RemoteService {
         return response;
     }
 
-    private static byte[] slurp(final InputStream inputStream)
+    /* package */ static HttpURLConnection openConnection(String endpointUrl, SSLSocketFactory socketFactory) throws IOException {
+        final URL url = new URL(endpointUrl);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (null != socketFactory && connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+        }
+
+        connection.setConnectTimeout(2000);
+        connection.setReadTimeout(30000);
+        return connection;
+    }
+
+    /* package */ static void writeBody(HttpURLConnection connection, RequestBody body) throws IOException {
+        final long contentLength = body.getContentLength();
+        if (contentLength >= 0) {
+            connection.setFixedLengthStreamingMode((int) contentLength);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+        connection.setRequestProperty("Content-Type", body.getContentType());
+        if (null != body.getContentEncoding()) {
+            connection.setRequestProperty("Content-Encoding", body.getContentEncoding());
+        }
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+
+        OutputStream out = null;
+        BufferedOutputStream bout = null;
+        try {
+            out = connection.getOutputStream();
+            bout = new BufferedOutputStream(out);
+            body.writeTo(bout);
+            bout.flush();
+            bout.close();
+            bout = null;
+            out.close();
+            out = null;
+        } finally {
+            if (null != bout)
+                try { bout.close(); } catch (final IOException e) { ; }
+            if (null != out)
+                try { out.close(); } catch (final IOException e) { ; }
+        }
+    }
+
+    /* package */ static boolean isServiceUnavailable(int responseCode) {
+        return responseCode >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && responseCode <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE;
+    }
+
+    // Responses that mean the request itself was refused, so sending it again can't help
+    /* package */ static boolean isRejectedRequest(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_BAD_REQUEST || responseCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+    }
+
+    /* package */ static byte[] slurp(final InputStream inputStream)
             throws IOException {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
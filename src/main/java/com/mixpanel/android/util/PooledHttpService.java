@@ -0,0 +1,158 @@
+package com.mixpanel.android.util;
+
+import android.os.SystemClock;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An HTTP utility class for internal use in the Mixpanel library that keeps connections open
+ * between requests, so draining a queue of N batches doesn't pay for N TLS handshakes.
+ *
+ * <p>Connections are kept alive by the platform HttpURLConnection pool. Rather than disconnecting
+ * after every request, responses and error responses are read to the end and closed, which returns
+ * their connection to the pool. A connection that fails before it gets a response is disconnected
+ * instead, which evicts it. When the pool has been idle for longer than the idle timeout, the server
+ * may have closed every connection in it, so requests that fail the way a closed connection does are
+ * retried on another connection until each one that could be pooled has been evicted. Only failures
+ * that come before the server could have answered the request are retried, as they were before
+ * connections were pooled.
+ *
+ * <p>Thread safe. One instance should be shared by every Mixpanel endpoint.
+ */
+public class PooledHttpService extends HttpService {
+
+    /**
+     * @param maxConnections the most requests that may be in flight, and so the most connections in the pool
+     * @param idleTimeoutMillis how long an idle pooled connection is trusted to still be open
+     */
+    public PooledHttpService(int maxConnections, long idleTimeoutMillis) {
+        mMaxConnections = Math.max(maxConnections, 1);
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mPermits = new Semaphore(mMaxConnections, true);
+        mLastReleaseMillis = new AtomicLong(Long.MIN_VALUE / 2);
+    }
+
+    @Override
+    public byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
+        final RequestBody body = null == params ? null : BufferedRequestBody.form(params);
+        return sendPooledRequest(endpointUrl, body, socketFactory);
+    }
+
+    @Override
+    public byte[] postRequest(String endpointUrl, RequestBody body, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
+        return sendPooledRequest(endpointUrl, body, socketFactory);
+    }
+
+    private byte[] sendPooledRequest(String endpointUrl, RequestBody body, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
+        MPLog.v(LOGTAG, "Attempting request to " + endpointUrl);
+
+        try {
+            mPermits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + endpointUrl);
+        }
+
+        try {
+            final boolean poolMayBeStale = SystemClock.elapsedRealtime() - mLastReleaseMillis.get() > mIdleTimeoutMillis;
+            final int attempts = poolMayBeStale ? mMaxConnections + 1 : 2;
+            IOException staleFailure = null;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                HttpURLConnection connection = null;
+                boolean reusable = false;
+                boolean bodyWritten = false;
+                try {
+                    connection = openConnection(endpointUrl, socketFactory);
+                    if (null != body) {
+                        writeBody(connection, body);
+                    }
+                    bodyWritten = true;
+                    final byte[] response = readFully(connection.getInputStream());
+                    reusable = true;
+                    return response;
+                } catch (final IOException e) {
+                    if (null != connection && isStaleConnectionFailure(e, bodyWritten)) {
+                        MPLog.d(LOGTAG, "Pooled connection to " + endpointUrl + " was closed, evicting it.");
+                        staleFailure = e;
+                        continue;
+                    }
+
+                    final int responseCode = null == connection ? -1 : getResponseCode(connection);
+                    if (responseCode < 0) {
+                        throw e;
+                    }
+                    // The server answered, so the connection is still good once the answer is read
+                    readFully(connection.getErrorStream());
+                    reusable = true;
+                    if (isServiceUnavailable(responseCode)) {
+                        throw new ServiceUnavailableException("Service Unavailable", connection.getHeaderField("Retry-After"));
+                    }
+                    if (isRejectedRequest(responseCode)) {
+                        throw new ClientErrorException(responseCode, e);
+                    }
+                    throw e;
+                } finally {
+                    if (reusable) {
+                        mLastReleaseMillis.set(SystemClock.elapsedRealtime());
+                    } else if (null != connection) {
+                        connection.disconnect();
+                    }
+                }
+            }
+
+            MPLog.v(LOGTAG, "Could not connect to Mixpanel service after evicting " + attempts + " connections.");
+            throw staleFailure;
+        } finally {
+            mPermits.release();
+        }
+    }
+
+    // Failures on a connection the server had already closed: the end of the stream where the
+    // response should be, as before pooling, or a socket error while the request was still being
+    // written. A socket error after that may have come once the server had the whole request, so
+    // it isn't retried. ConnectExceptions are excluded since they come from new connections.
+    private static boolean isStaleConnectionFailure(IOException e, boolean bodyWritten) {
+        if (e instanceof EOFException) {
+            return true;
+        }
+        return !bodyWritten && e instanceof SocketException && !(e instanceof ConnectException);
+    }
+
+    private static int getResponseCode(HttpURLConnection connection) {
+        try {
+            return connection.getResponseCode();
+        } catch (final IOException e) {
+            return -1;
+        }
+    }
+
+    // Reads and closes in, so its connection can go back to the pool
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (null == in) {
+            return null;
+        }
+        try {
+            return slurp(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private final int mMaxConnections;
+    private final long mIdleTimeoutMillis;
+    private final Semaphore mPermits;
+    private final AtomicLong mLastReleaseMillis;
+
+    private static final String LOGTAG = "MixpanelAPI.Message";
+}
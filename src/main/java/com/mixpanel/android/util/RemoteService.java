@@ -4,6 +4,7 @@ import android.content.Context;
 
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 import javax.net.ssl.SSLSocketFactory;
@@ -12,11 +13,35 @@ import javax.net.ssl.SSLSocketFactory;
 public interface RemoteService {
     boolean isOnline(Context context, OfflineMode offlineMode);
 
+    /**
+     * @deprecated No longer called by the library. HttpService starts checking whether Mixpanel
+     * is blocked in the background on the first call to isOnline.
+     */
+    @Deprecated
     void checkIsMixpanelBlocked();
 
     byte[] performRequest(String endpointUrl, Map<String, Object> params, SSLSocketFactory socketFactory)
             throws ServiceUnavailableException, IOException;
 
+    /**
+     * The content of a POST request, for a {@link StreamingRemoteService}. A body may be written more than once, if the request is retried.
+     */
+    interface RequestBody {
+        String getContentType();
+
+        /**
+         * @return the value of the Content-Encoding header, or null to send none
+         */
+        String getContentEncoding();
+
+        /**
+         * @return the length of the body in bytes, or -1 if it isn't known before it is written
+         */
+        long getContentLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     class ServiceUnavailableException extends Exception {
         public ServiceUnavailableException(String message, String strRetryAfter) {
             super(message);
@@ -35,4 +60,21 @@ public interface RemoteService {
 
         private final int mRetryAfter;
     }
+
+    /**
+     * Thrown when the server refuses a request as malformed or too large. Sending the same
+     * request again will fail the same way.
+     */
+    class ClientErrorException extends IOException {
+        public ClientErrorException(int responseCode, IOException cause) {
+            super("Request rejected with HTTP " + responseCode, cause);
+            mResponseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        private final int mResponseCode;
+    }
 }
@@ -0,0 +1,17 @@
+package com.mixpanel.android.util;
+
+import java.io.IOException;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A RemoteService that can also POST a request body of its own content type and encoding, such
+ * as gzip-compressed JSON. Requests to a RemoteService without it are always sent as forms.
+ */
+public interface StreamingRemoteService extends RemoteService {
+    /**
+     * POSTs body to endpointUrl.
+     */
+    byte[] postRequest(String endpointUrl, RequestBody body, SSLSocketFactory socketFactory)
+            throws ServiceUnavailableException, IOException;
+}